@@ -51,6 +51,9 @@
 @RunWith(ArchiveSuite.class)
 public class ApplicationTest extends AbstractVelocityEscapingTest
 {
+    /** Matches the documents, compiled once for all the instances. */
+    private static final Pattern DOCUMENTS = Pattern.compile(".+/.+\\.xml");
+
     /**
      * Get the path to the archive from system properties defined in the maven build configuration.
      * 
@@ -87,6 +90,8 @@ public static void shutdown() throws Exception
         // restore single language mode
         AbstractEscapingTest.setMultiLanguageMode(false);
 
+        AbstractEscapingTest.saveTestResults();
+
         SingleXWikiExecutor.getExecutor().stop();
     }
 
@@ -95,7 +100,7 @@ public static void shutdown() throws Exception
      */
     public ApplicationTest()
     {
-        super(Pattern.compile(".+/.+\\.xml"));
+        super(DOCUMENTS);
     }
 
     /**
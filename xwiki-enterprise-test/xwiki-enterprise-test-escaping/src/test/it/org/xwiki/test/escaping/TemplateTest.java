@@ -56,6 +56,9 @@
 @RunWith(ArchiveSuite.class)
 public class TemplateTest extends AbstractVelocityEscapingTest
 {
+    /** Matches the templates, compiled once for all the instances. */
+    private static final Pattern TEMPLATES = Pattern.compile(".*\\.vm");
+
     /**
      * Get the path to the archive from system properties defined in the maven build configuration.
      * 
@@ -92,6 +95,8 @@ public static void shutdown() throws Exception
         // restore single language mode
         AbstractEscapingTest.setMultiLanguageMode(false);
 
+        AbstractEscapingTest.saveTestResults();
+
         SingleXWikiExecutor.getExecutor().stop();
     }
 
@@ -100,7 +105,7 @@ public static void shutdown() throws Exception
      */
     public TemplateTest()
     {
-        super(Pattern.compile(".*\\.vm"));
+        super(TEMPLATES);
     }
 
     /**
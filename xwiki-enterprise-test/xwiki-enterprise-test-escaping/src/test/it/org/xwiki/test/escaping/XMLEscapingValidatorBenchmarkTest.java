@@ -0,0 +1,292 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.escaping;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.xwiki.test.escaping.framework.XMLEscapingValidator;
+import org.xwiki.validator.ValidationError;
+import org.xwiki.validator.ValidationError.Type;
+
+/**
+ * Compares the single pass {@link XMLEscapingValidator} with the former line by line implementation, kept here as a
+ * reference: both must report the same errors. On multi-MB responses, the single pass must not allocate in proportion
+ * with the response, and the CPU times of both (garbage collection included) are printed. The comparison of the errors
+ * always runs; the benchmark only runs with -DescapingBenchmark=true.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>escapingBenchmark (optional): run the benchmark</li>
+ * <li>escapingBenchmarkSize (optional): size of the generated responses in MB, 8 by default</li>
+ * </ul>
+ * 
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class XMLEscapingValidatorBenchmarkTest
+{
+    /** Number of measured validations, after as many warm-up ones. */
+    private static final int REPETITIONS = 10;
+
+    /** Lines without any test string, most of a response. */
+    private static final String[] MARKUP_LINES = {
+        "<div class=\"content\"><p>Some text with no test string at all, only markup.</p></div>",
+        "    <li class=\"menu-item\"><a href=\"/xwiki/bin/view/Main/\" title=\"Home\">Home</a></li>",
+        "<script type=\"text/javascript\">var options = {'a': 1, \"b\": [2, 3]}; if (a < b && b > c) {}</script>",
+        ""};
+
+    /** Lines with the test string, escaped or not, or with error traces. */
+    private static final String[] TEST_LINES = {
+        "<a href=\"view?text=aaa%22bbb%27ccc%3Eddd%3Ceee\">aaa&quot;bbb&#39;ccc&gt;ddd&lt;eee</a>",
+        "<p>" + XMLEscapingValidator.getTestString() + "</p>",
+        "<input value=\"aaa&quot;bbb'ccc&gt;ddd&lt;eee\"/> <input value='aaa\"bbb&#39;ccc&gt;ddd&lt;eee'/>",
+        "<script>var text = 'aaa\\\"bbb\\'ccc>ddd<eee';</script>",
+        "<span title=\"" + XMLEscapingValidator.getTestString() + "\">" + XMLEscapingValidator.getTestString()
+            + "</span>",
+        "<pre class=\"xwikierror\">Error while parsing velocity page templates/test.vm</pre>",
+        "org.xwiki.rendering.macro.MacroExecutionException: Failed to execute the [velocity] macro",
+        "Wrapped Exception: unexpected char: '\"'",
+        "<p>Caf\u00e9, \u4e2d\u6587, aaa\"bbb\u00e9'ccc&gt;ddd\u00e9<eee</p>"};
+
+    /** Line terminators of the generated responses. */
+    private static final String[] TERMINATORS = {"\n", "\r\n", "\r"};
+
+    @Test
+    public void testSameErrors() throws Exception
+    {
+        // long lines cross the boundaries of the read buffers
+        for (int maxRepeat : new int[] {1, 50, 2000}) {
+            byte[] document = generate(256 * 1024, maxRepeat, 2, maxRepeat);
+            Assert.assertEquals(format(new LineBasedValidator().validate(document)),
+                format(validate(new XMLEscapingValidator(), document)));
+        }
+    }
+
+    @Test
+    public void benchmarkValidator() throws Exception
+    {
+        Assume.assumeTrue(Boolean.getBoolean("escapingBenchmark"));
+
+        byte[] document = generate(Integer.getInteger("escapingBenchmarkSize", 8) * 1024 * 1024, 5, 50, 0);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        long[] lineBased = new long[2];
+        long[] singlePass = new long[2];
+        for (int i = 0; i < 2 * REPETITIONS; i++) {
+            boolean measured = i >= REPETITIONS;
+
+            long cpu = getCpuTime();
+            long allocated = getAllocatedBytes(threads);
+            new LineBasedValidator().validate(document);
+            if (measured) {
+                lineBased[0] += getCpuTime() - cpu;
+                lineBased[1] += getAllocatedBytes(threads) - allocated;
+            }
+
+            cpu = getCpuTime();
+            allocated = getAllocatedBytes(threads);
+            validate(new XMLEscapingValidator(), document);
+            if (measured) {
+                singlePass[0] += getCpuTime() - cpu;
+                singlePass[1] += getAllocatedBytes(threads) - allocated;
+            }
+        }
+
+        System.out.println(String.format("Validation of %d MB: line by line %d ms and %d MB allocated, "
+            + "single pass %d ms and %d MB allocated", document.length >> 20, lineBased[0] / REPETITIONS / 1000000,
+            lineBased[1] / REPETITIONS >> 20, singlePass[0] / REPETITIONS / 1000000,
+            singlePass[1] / REPETITIONS >> 20));
+        if (lineBased[1] > 0) {
+            Assert.assertTrue("The single pass validator allocates more", singlePass[1] < lineBased[1]);
+            Assert.assertTrue("The single pass validator buffers the response",
+                singlePass[1] / REPETITIONS < document.length / 8);
+        }
+    }
+
+    /**
+     * @return the CPU time of the JVM, which includes the garbage collection of what the validators allocate, or the
+     *         CPU time of the current thread if the JVM does not measure it
+     */
+    private long getCpuTime()
+    {
+        java.lang.management.OperatingSystemMXBean system = ManagementFactory.getOperatingSystemMXBean();
+        if (system instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) system).getProcessCpuTime();
+        }
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    /**
+     * @param threads the thread management bean
+     * @return the bytes allocated by the current thread, or 0 if the JVM does not count them
+     */
+    private long getAllocatedBytes(ThreadMXBean threads)
+    {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Generate a response with random lines, some of them containing the test string escaped in different ways or
+     * error traces.
+     * 
+     * @param size the size of the response, in bytes
+     * @param maxRepeat the maximum number of times a line is repeated without terminator
+     * @param testLineRatio one line in this number is a test line, on average
+     * @param seed the seed of the random lines
+     * @return the response, encoded in UTF-8
+     */
+    private byte[] generate(int size, int maxRepeat, int testLineRatio, long seed)
+    {
+        Random random = new Random(seed);
+        StringBuilder document = new StringBuilder(size);
+        while (document.length() < size) {
+            String[] lines = random.nextInt(testLineRatio) == 0 ? TEST_LINES : MARKUP_LINES;
+            String line = lines[random.nextInt(lines.length)];
+            for (int i = random.nextInt(maxRepeat) + 1; i > 0; i--) {
+                document.append(line);
+            }
+            document.append(TERMINATORS[random.nextInt(TERMINATORS.length)]);
+        }
+        return document.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<ValidationError> validate(XMLEscapingValidator validator, byte[] document)
+    {
+        validator.setDocument(new ByteArrayInputStream(document));
+        return validator.validate();
+    }
+
+    private String format(List<ValidationError> errors)
+    {
+        StringBuilder result = new StringBuilder();
+        for (ValidationError error : errors) {
+            result.append(error.getType()).append(' ').append(error.getLine()).append(':').append(error.getColumn());
+            result.append(' ').append(error.getMessage()).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * The former implementation of {@link XMLEscapingValidator}, which reads the response in a list of lines and
+     * searches each line for each test string.
+     */
+    private static class LineBasedValidator
+    {
+        private static final String INPUT_STRING = XMLEscapingValidator.getTestString();
+
+        private static final String TEST_APOS = "bbb'ccc";
+
+        private static final String TEST_QUOT = "aaa\"bbb";
+
+        private static final String TEST_JS_APOS = "bbb\\'ccc";
+
+        private static final String TEST_JS_QUOT = "aaa\\\"bbb";
+
+        private final List<ValidationError> errors = new ArrayList<ValidationError>();
+
+        public List<ValidationError> validate(byte[] content) throws IOException
+        {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+            List<String> document = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                document.add(line);
+            }
+
+            int lineNr = 1;
+            for (String documentLine : document) {
+                checkStringDelimiters(documentLine, lineNr);
+                checkTagDelimiter(documentLine, lineNr, "ddd<eee", "Unescaped < character");
+                checkTagDelimiter(documentLine, lineNr, "ccc>ddd", "Unescaped > character");
+
+                int idx;
+                if ((idx = documentLine.indexOf("Error while parsing velocity page")) >= 0) {
+                    this.errors.add(new ValidationError(Type.WARNING, lineNr, idx,
+                        "Parse error in the response. The template was not evaluated correctly."));
+                }
+                if ((idx = documentLine.indexOf("org.xwiki.rendering.macro.MacroExecutionException")) >= 0) {
+                    this.errors.add(new ValidationError(Type.WARNING, lineNr, idx,
+                        "Macro execution exception in the response."));
+                }
+                if ((idx = documentLine.indexOf("Wrapped Exception: unexpected char:")) >= 0) {
+                    this.errors.add(new ValidationError(Type.WARNING, lineNr, idx, "Possible SQL error trace."));
+                }
+                lineNr++;
+            }
+            return this.errors;
+        }
+
+        private void checkTagDelimiter(String line, int lineNr, String testMatch, String errorMessage)
+        {
+            int idx = 0;
+            while ((idx = line.indexOf(testMatch, idx)) >= 0) {
+                if (!isJavascriptEscaped(line, testMatch, idx)) {
+                    this.errors.add(new ValidationError(Type.ERROR, lineNr, idx, errorMessage));
+                }
+                idx++;
+            }
+        }
+
+        private void checkStringDelimiters(String line, int lineNr)
+        {
+            final int offset = INPUT_STRING.indexOf(TEST_APOS) - INPUT_STRING.indexOf(TEST_QUOT);
+            int idx = 0;
+            while ((idx = line.indexOf(TEST_APOS, idx)) >= 0) {
+                int expectedIdx = idx - offset;
+                if (expectedIdx < 0 || line.indexOf(TEST_QUOT, expectedIdx) != expectedIdx) {
+                    this.errors.add(new ValidationError(Type.WARNING, lineNr, idx, "Unescaped ' character"));
+                }
+                idx++;
+            }
+            idx = 0;
+            while ((idx = line.indexOf(TEST_QUOT, idx)) >= 0) {
+                int expectedIdx = idx + offset;
+                if (line.indexOf(TEST_APOS, expectedIdx) != expectedIdx) {
+                    this.errors.add(new ValidationError(Type.WARNING, lineNr, idx, "Unescaped \" character"));
+                }
+                idx++;
+            }
+        }
+
+        private boolean isJavascriptEscaped(String line, String match, int index)
+        {
+            int offset = INPUT_STRING.indexOf(match) + 2;
+            int posApos = line.indexOf(TEST_JS_APOS, index - offset);
+            int posQuot = line.indexOf(TEST_JS_QUOT, index - offset);
+            return posApos >= 0 && posApos < index && posQuot >= 0 && posQuot < index;
+        }
+    }
+}
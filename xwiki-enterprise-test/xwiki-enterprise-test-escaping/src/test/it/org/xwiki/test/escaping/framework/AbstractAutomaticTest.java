@@ -19,6 +19,8 @@
  */
 package org.xwiki.test.escaping.framework;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -29,6 +31,15 @@
  */
 public abstract class AbstractAutomaticTest extends AbstractEscapingTest
 {
+    /** The "patternExcludeFiles" patterns, compiled once. */
+    private static final List<Pattern> EXCLUDED_FILES = new ArrayList<Pattern>();
+
+    static {
+        for (String pattern : System.getProperty("patternExcludeFiles", "").split("\\s+")) {
+            EXCLUDED_FILES.add(Pattern.compile(pattern));
+        }
+    }
+
     /**
      * Create new {@link AbstractAutomaticTest}.
      * 
@@ -52,8 +63,7 @@ public AbstractAutomaticTest(Pattern fileNameMatcher)
     @Override
     protected boolean isExcludedFile(String fileName)
     {
-        for (String pattern : System.getProperty("patternExcludeFiles", "").split("\\s+")) {
-            Pattern exclude = Pattern.compile(pattern);
+        for (Pattern exclude : EXCLUDED_FILES) {
             if (exclude.matcher(fileName).matches()) {
                 return true;
             }
@@ -25,10 +25,12 @@
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -39,16 +41,26 @@
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpState;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.InvalidRedirectLocationException;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.params.HttpClientParams;
 import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.AssumptionViolatedException;
+import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.rules.TestWatcher;
+import org.junit.runner.Description;
 import org.xwiki.test.escaping.suite.FileTest;
 import org.xwiki.validator.ValidationError;
 
@@ -67,8 +79,23 @@
  * <ul>
  * <li>pattern (optional): Additional pattern to select files to be tested (use -Dpattern="substring-regex"). Matches
  * all files if empty.</li>
+ * <li>escapingThreads (optional): Number of files tested in parallel by the
+ * {@link org.xwiki.test.escaping.suite.ArchiveSuite} suites, 1 by default</li>
+ * <li>escapingInstances (optional): Number of XWiki instances the files are spread over, 1 by default, see
+ * {@link SingleXWikiExecutor}</li>
+ * <li>escapingCache (optional): File where the results are kept from one run to the next,
+ * "~/.xwiki/escaping-cache.properties" by default so that it survives "mvn clean". The default file is shared by all
+ * the checkouts, set a file per branch to keep their results apart.</li>
+ * <li>escapingForce (optional): Test all the files if true. By default, the files whose content and parameters did not
+ * change since a run in which all their tests passed are skipped. A full run should be forced when what the files use
+ * (macros, other templates, the platform) changed.</li>
  * </ul>
  * <p>
+ * The HTTP client is shared by all the threads, while the login status and the cookies (e.g. the language) belong to
+ * the current thread. Each file is always tested on the same instance, chosen from the hash of its name.
+ * <p>
+ * The response time and size of every request are recorded by tested file, see {@link RequestProfile}.
+ * <p>
  * Automatic tests (see {@link AbstractAutomaticTest}) additionally support:
  * <ul>
  * <li>patternExcludeFiles (optional): List of RegEx patterns to exclude files from the tests</li>
@@ -79,8 +106,8 @@
  */
 public abstract class AbstractEscapingTest implements FileTest
 {
-    /** Static part of the test URL. */
-    private static final String URL_START = "http://127.0.0.1:8080/xwiki/bin/";
+    /** Static part of the test URL, the port of the instance being inserted at the first position. */
+    private static final String URL_START = "http://127.0.0.1:%d/xwiki/bin/";
 
     /** Language parameter name. */
     private static final String LANGUAGE = "language";
@@ -88,14 +115,54 @@ public abstract class AbstractEscapingTest implements FileTest
     /** Secret token parameter name. */
     private static final String SECRET_TOKEN = "form_token";
 
-    /** HTTP client shared between all subclasses. */
+    /** HTTP client shared between all subclasses and threads. */
     private static HttpClient client;
 
-    /** A flag controlling login. If true, administrator credentials are used. */
-    private static boolean loggedIn = true;
+    /** A flag controlling login, for the current thread. If true, administrator credentials are used. */
+    private static final ThreadLocal<Boolean> LOGGED_IN = new ThreadLocal<Boolean>()
+    {
+        @Override
+        protected Boolean initialValue()
+        {
+            return true;
+        }
+    };
 
-    /** Stores two cached tokens, one for each value of loggedIn (false -> 0, true -> 1). */
-    private static String[] secretTokens = new String[2];
+    /** The credentials and cookies of the current thread. */
+    private static final ThreadLocal<HttpState> STATE = new ThreadLocal<HttpState>()
+    {
+        @Override
+        protected HttpState initialValue()
+        {
+            HttpState state = new HttpState();
+            Credentials defaultcreds = new UsernamePasswordCredentials("Admin", "admin");
+            state.setCredentials(AuthScope.ANY, defaultcreds);
+            return state;
+        }
+    };
+
+    /** The index of the XWiki instance the current thread sends its requests to. */
+    private static final ThreadLocal<Integer> INSTANCE = new ThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            return 0;
+        }
+    };
+
+    /** The file tested by the current thread, the requests are recorded for it in the {@link RequestProfile}. */
+    private static final ThreadLocal<String> TESTED_FILE = new ThreadLocal<String>();
+
+    /** Stores the cached tokens of each instance, for logged in and logged out, by URL start and loggedIn. */
+    private static final Map<String, String> secretTokens = new HashMap<>();
+
+    /** Whether to test the files whose tests all passed in a previous run. */
+    private static final boolean FORCE = Boolean.getBoolean("escapingForce");
+
+    /** The "pattern" property, compiled once, null if empty. */
+    private static final Pattern FILE_PATTERN = StringUtils.isEmpty(System.getProperty("pattern"))
+        ? null : Pattern.compile(".*" + System.getProperty("pattern") + ".*");
 
     private static Set<String> XML_MIMETYPES = new HashSet<>(Arrays.asList("text/html", "text/xml", "application/xml"));
 
@@ -105,9 +172,36 @@ public abstract class AbstractEscapingTest implements FileTest
     /** User provided data found in the file. */
     protected Set<String> userInput;
 
+    /** Records the result of each test method on the tested file, see {@link TestResultCache}. */
+    @Rule
+    public TestWatcher resultRecorder = new TestWatcher()
+    {
+        @Override
+        protected void succeeded(Description description)
+        {
+            setResult(description, true);
+        }
+
+        @Override
+        protected void failed(Throwable e, Description description)
+        {
+            setResult(description, false);
+        }
+
+        @Override
+        protected void skipped(AssumptionViolatedException e, Description description)
+        {
+            // the assumptions only depend on the file (e.g. whether it has parameters)
+            setResult(description, true);
+        }
+    };
+
     /** Pattern used to match files by name. */
     private Pattern namePattern;
 
+    /** Hash of the content and the parameters of the tested file, null if it was not read from an archive. */
+    private String hash;
+
     /**
      * Create new AbstractEscapingTest.
      * 
@@ -141,26 +235,74 @@ public static void stopExecutor() throws Exception
     }
 
     /**
-     * Change multi-language mode. Note: XWiki server must already be started.
+     * Write the test results and the request profile recorded so far. Called once at the end of the archive suites
+     * rather than after each class: their runner runs the class methods of each file.
+     * 
+     * @since 9.5RC1
+     */
+    public static void saveTestResults()
+    {
+        TestResultCache.save();
+        RequestProfile.write();
+    }
+
+    /**
+     * Send the requests of this test to the instance the tested file belongs to.
+     */
+    @Before
+    public void selectInstance()
+    {
+        INSTANCE.set(this.name == null ? 0 : Math.abs(this.name.hashCode() % SingleXWikiExecutor.getInstanceCount()));
+        TESTED_FILE.set(this.name);
+    }
+
+    /**
+     * Stop recording the requests of the current thread for the tested file.
+     */
+    @After
+    public void clearTestedFile()
+    {
+        TESTED_FILE.remove();
+    }
+
+    /**
+     * Change multi-language mode, on all the instances. Note: XWiki server must already be started.
      * 
      * @param enabled enable the multi-language mode if true, disable otherwise
      */
     protected static void setMultiLanguageMode(boolean enabled)
     {
-        String url = AbstractEscapingTest.URL_START + "save/XWiki/XWikiPreferences?";
-        url += SECRET_TOKEN + "=" + getSecretToken();
-        url += "&XWiki.XWikiPreferences_0_languages=&XWiki.XWikiPreferences_0_multilingual=";
-        AbstractEscapingTest.getUrlContent(url + (enabled ? 1 : 0));
-        // set language=en to prevent false positives coming from the cookies
-        String langUrl = AbstractEscapingTest.URL_START + "view/Main/?" + LANGUAGE + "=en";
-        AbstractEscapingTest.getUrlContent(langUrl);
+        int current = INSTANCE.get();
+        try {
+            for (int i = 0; i < SingleXWikiExecutor.getInstanceCount(); i++) {
+                INSTANCE.set(i);
+                String url = getUrlStart() + "save/XWiki/XWikiPreferences?";
+                url += SECRET_TOKEN + "=" + getSecretToken();
+                url += "&XWiki.XWikiPreferences_0_languages=&XWiki.XWikiPreferences_0_multilingual=";
+                AbstractEscapingTest.getUrlContent(url + (enabled ? 1 : 0));
+                // set language=en to prevent false positives coming from the cookies
+                String langUrl = getUrlStart() + "view/Main/?" + LANGUAGE + "=en";
+                AbstractEscapingTest.getUrlContent(langUrl);
+            }
+        } finally {
+            INSTANCE.set(current);
+        }
+    }
+
+    /**
+     * @return the start of the URLs of the instance the current thread sends its requests to
+     */
+    private static String getUrlStart()
+    {
+        return String.format(URL_START, SingleXWikiExecutor.getExecutor().getInstance(INSTANCE.get()).getPort());
     }
 
     /**
      * {@inheritDoc}
      * <p>
      * The implementation for escaping tests checks if the given file name matches the supported name pattern and parses
-     * the file.
+     * the file. Files whose tests all passed in a previous run, with the same content and parameters, are skipped
+     * unless the system property "escapingForce" is true.
      * 
      * @see org.xwiki.test.escaping.suite.FileTest#initialize(java.lang.String, java.io.Reader)
      */
@@ -173,10 +315,42 @@ public boolean initialize(String name, final Reader reader)
             return false;
         }
 
-        this.userInput = parse(reader);
+        if (reader == null) {
+            this.userInput = parse(reader);
+            return true;
+        }
+
+        String content;
+        try {
+            content = IOUtils.toString(reader);
+        } catch (IOException exception) {
+            throw new RuntimeException("Failed to read " + name, exception);
+        }
+        this.userInput = parse(new StringReader(content));
+        this.hash = TestResultCache.hash(content, this.userInput);
+        if (!FORCE && TestResultCache.hasPassed(getClass(), name, this.hash)) {
+            System.out.println("Skipping unchanged file: " + name);
+            return false;
+        }
         return true;
     }
 
+    /**
+     * Record the result of a test method on the tested file.
+     * 
+     * @param description the test method
+     * @param passed whether it passed
+     */
+    private void setResult(Description description, boolean passed)
+    {
+        if (this.hash != null) {
+            // the file test runner prefixes the method names with the test description
+            String method = description.getMethodName();
+            method = method.substring(method.lastIndexOf(' ') + 1);
+            TestResultCache.setResult(getClass(), this.name, method, this.hash, passed);
+        }
+    }
+
     /**
      * Check if the internal file name pattern matches the given file name.
      * 
@@ -197,11 +371,7 @@ protected boolean fileNameMatches(String fileName)
      */
     protected boolean patternMatches(String fileName)
     {
-        String pattern = System.getProperty("pattern", "");
-        if (pattern == null || pattern.equals("")) {
-            return true;
-        }
-        return Pattern.matches(".*" + pattern + ".*", fileName);
+        return FILE_PATTERN == null || FILE_PATTERN.matcher(fileName).matches();
     }
 
     /**
@@ -227,17 +397,17 @@ protected boolean patternMatches(String fileName)
      */
     protected static boolean isLoggedIn()
     {
-        return loggedIn;
+        return LOGGED_IN.get();
     }
 
     /**
-     * Set authentication status.
+     * Set authentication status, for the current thread.
      * 
      * @param value the value to set
      */
     protected static void setLoggedIn(boolean value)
     {
-        loggedIn = value;
+        LOGGED_IN.set(value);
     }
 
     /**
@@ -257,7 +427,8 @@ protected static URLContent getUrlContent(String url)
         }
 
         try {
-            int statusCode = AbstractEscapingTest.getClient().executeMethod(get);
+            long start = System.nanoTime();
+            int statusCode = AbstractEscapingTest.getClient().executeMethod(null, get, STATE.get());
             switch (statusCode) {
                 case HttpStatus.SC_OK:
                     // everything is fine
@@ -281,7 +452,10 @@ protected static URLContent getUrlContent(String url)
                         + get.getStatusText() + ") for URL: " + url);
             }
 
-            return new URLContent(get.getResponseHeader("Content-Type").getValue(), get.getResponseBody());
+            byte[] body = get.getResponseBody();
+            RequestProfile.record(TESTED_FILE.get(), url, System.nanoTime() - start, body == null ? 0 : body.length);
+
+            return new URLContent(get.getResponseHeader("Content-Type").getValue(), body);
         } catch (IOException exception) {
             throw new RuntimeException("Error retrieving URL: " + url, exception);
         } finally {
@@ -306,18 +480,15 @@ protected static String escapeUrl(String str)
     }
 
     /**
-     * Get an instance of the HTTP client to use.
+     * Get an instance of the HTTP client to use. The client is thread safe, but its state is not used: the requests
+     * must be executed with the state of the current thread, as {@link #getUrlContent(String)} does.
      * 
-     * @return HTTP client initialized with admin credentials
+     * @return HTTP client pooling its connections
      */
-    protected static HttpClient getClient()
+    protected static synchronized HttpClient getClient()
     {
         if (AbstractEscapingTest.client == null) {
-            HttpClient adminClient = new HttpClient();
-
-            // set up admin credentials
-            Credentials defaultcreds = new UsernamePasswordCredentials("Admin", "admin");
-            adminClient.getState().setCredentials(AuthScope.ANY, defaultcreds);
+            HttpClient adminClient = new HttpClient(new MultiThreadedHttpConnectionManager());
 
             // set up client parameters
             HttpClientParams clientParams = new HttpClientParams();
@@ -332,6 +503,10 @@ protected static HttpClient getClient()
             // set up connections parameters
             HttpConnectionManagerParams connectionParams = new HttpConnectionManagerParams();
             connectionParams.setConnectionTimeout(30000);
+            // one connection per test thread, and some more for the threads waiting for the server to release theirs
+            int threads = Integer.getInteger("escapingThreads", 1);
+            connectionParams.setDefaultMaxConnectionsPerHost(2 * threads);
+            connectionParams.setMaxTotalConnections(2 * threads);
             adminClient.getHttpConnectionManager().setParams(connectionParams);
 
             AbstractEscapingTest.client = adminClient;
@@ -433,7 +608,7 @@ protected static String createUrl(String action, String space, String page, Map<
     protected static String createUrl(String action, String space, String page, Map<String, String> parameters,
         boolean addLanguage)
     {
-        String url = URL_START + escapeUrl(action == null ? "view" : action) + "/";
+        String url = getUrlStart() + escapeUrl(action == null ? "view" : action) + "/";
         url += escapeUrl(space == null ? "Main" : space) + "/";
         url += escapeUrl(page == null ? "WebHome" : page);
 
@@ -461,18 +636,21 @@ protected static String createUrl(String action, String space, String page, Map<
     }
 
     /**
-     * Get the secret token used for CSRF protection. Caches 2 tokens (for logged in and logged out) on the first call.
+     * Get the secret token used for CSRF protection. Caches 2 tokens per instance (for logged in and logged out) on the
+     * first call.
      * 
      * @return anti-CSRF secret token, or empty string on error
      * @since 3.2M1
      */
-    protected static String getSecretToken()
+    protected static synchronized String getSecretToken()
     {
-        int index = isLoggedIn() ? 1 : 0;
-        if (secretTokens[index] == null) {
-            secretTokens[index] = getSecretTokenFromPage();
+        String key = getUrlStart() + isLoggedIn();
+        String token = secretTokens.get(key);
+        if (token == null) {
+            token = getSecretTokenFromPage();
+            secretTokens.put(key, token);
         }
-        return secretTokens[index];
+        return token;
     }
 
     /**
@@ -31,6 +31,7 @@
 import java.util.regex.Pattern;
 
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Assume;
 
@@ -212,6 +213,15 @@ protected static String[] template(String templateName)
         return kv("xpage", templateName);
     }
 
+    /**
+     * Write the request profile, the manual tests don't run in an archive suite.
+     */
+    @AfterClass
+    public static void saveManualTestResults()
+    {
+        AbstractEscapingTest.saveTestResults();
+    }
+
     /**
      * Clean up.
      */
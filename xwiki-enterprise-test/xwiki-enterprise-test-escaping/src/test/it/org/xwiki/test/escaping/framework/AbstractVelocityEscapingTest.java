@@ -37,6 +37,39 @@
  */
 public abstract class AbstractVelocityEscapingTest extends AbstractAutomaticTest
 {
+    /** Matches the parameters and other user-controlled things used in velocity, compiled once. */
+    private static final Pattern PARAMETER_PATTERN = Pattern.compile(
+        "\\$!?\\{?request\\.get\\((?:\"|')(\\w+)(?:\"|')\\)|"
+        + "\\$!?\\{?request\\.getParameter\\((?:\"|')(\\w+)(?:\"|')\\)|"
+        + "\\$!?\\{?request\\.(\\w+)[^(a-zA-Z_0-9]|"
+        + "\\b(editor)\\b|"
+        + "\\b(viewer)\\b|"
+        + "\\b(section)\\b|"
+        + "\\$!?\\{?(template)\\b|"
+        + "\\$!?\\{?(revparams)\\b|"
+        + "\\b(xredirect)\\b|"
+        + "\\b(x-maximized)\\b|"
+        + "\\b(xnotification)\\b|"
+        + "\\b(classname)\\b|"
+        + "\\b(comment)\\b|"
+        + "\\b(rev1)\\b|"
+        + "\\b(rev2)\\b|"
+        + "\\b(sourcedoc)\\b|"
+        + "\\b(targetdoc)\\b|"
+        + "\\b(srid)\\b|"
+        + "\\b(language)\\b");
+
+    /** Parameters known to produce false positives only. */
+    private static final Set<String> IGNORED = new HashSet<String>();
+
+    static {
+        // xpage is handled by actions (in xwiki-core) to render a velocity template
+        // invalid template names produce "Unexpected empty response" warnings
+        IGNORED.add("xpage");
+        // form token is never (should not be) rendered, but is checked by CSRF protection
+        IGNORED.add("form_token");
+    }
+
     /**
      * Create new AbstractVelocityEscapingTest.
      * 
@@ -56,43 +89,17 @@ protected AbstractVelocityEscapingTest(Pattern fileNameMatcher)
     @Override
     protected Set<String> parse(Reader reader)
     {
-        // parameters in this set are known to produce false positives only
-        Set<String> ignored = new HashSet<String>();
-        // xpage is handled by actions (in xwiki-core) to render a velocity template
-        // invalid template names produce "Unexpected empty response" warnings
-        ignored.add("xpage");
-        // form token is never (should not be) rendered, but is checked by CSRF protection
-        ignored.add("form_token");
         // TODO match if user name, space name or action is used
         Set<String> input = new HashSet<String>();
         BufferedReader data = new BufferedReader(reader);
-        Pattern pattern = Pattern.compile("\\$!?\\{?request\\.get\\((?:\"|')(\\w+)(?:\"|')\\)|"
-                                        + "\\$!?\\{?request\\.getParameter\\((?:\"|')(\\w+)(?:\"|')\\)|"
-                                        + "\\$!?\\{?request\\.(\\w+)[^(a-zA-Z_0-9]|"
-                                        + "\\b(editor)\\b|"
-                                        + "\\b(viewer)\\b|"
-                                        + "\\b(section)\\b|"
-                                        + "\\$!?\\{?(template)\\b|"
-                                        + "\\$!?\\{?(revparams)\\b|"
-                                        + "\\b(xredirect)\\b|"
-                                        + "\\b(x-maximized)\\b|"
-                                        + "\\b(xnotification)\\b|"
-                                        + "\\b(classname)\\b|"
-                                        + "\\b(comment)\\b|"
-                                        + "\\b(rev1)\\b|"
-                                        + "\\b(rev2)\\b|"
-                                        + "\\b(sourcedoc)\\b|"
-                                        + "\\b(targetdoc)\\b|"
-                                        + "\\b(srid)\\b|"
-                                        + "\\b(language)\\b");
         try {
             String line;
             while ((line = data.readLine()) != null) {
-                Matcher match = pattern.matcher(line);
+                Matcher match = PARAMETER_PATTERN.matcher(line);
                 while (match.find()) {
                     for (int i = 1; i <= match.groupCount(); i++) {
                         String parameter = match.group(i);
-                        if (parameter != null && !parameter.matches("\\s*") && !ignored.contains(parameter)) {
+                        if (parameter != null && !parameter.trim().isEmpty() && !IGNORED.contains(parameter)) {
                             input.add(parameter);
                         }
                     }
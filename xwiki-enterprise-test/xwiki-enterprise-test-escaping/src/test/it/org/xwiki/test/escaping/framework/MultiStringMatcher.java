@@ -0,0 +1,196 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.escaping.framework;
+
+import java.util.Arrays;
+
+/**
+ * Finds all the occurrences of a fixed set of strings in a buffer of characters in a single pass, without creating any
+ * substring (Wu-Manber algorithm, with blocks of 2 characters).
+ * <p>
+ * A window of the length of the shortest string slides over the characters. Its last 2 characters tell how far it can
+ * move before they could be part of one of the strings: in text that does not contain the strings, the window usually
+ * moves by its whole length minus one, so that most characters are never looked at. When the last 2 characters end
+ * the window part of some strings, only these strings are compared with the characters.
+ * <p>
+ * The matcher is immutable and thread safe.
+ * 
+ * @version $Id$
+ * @since 9.5RC1
+ */
+final class MultiStringMatcher
+{
+    /**
+     * Receives the occurrences found by {@link MultiStringMatcher#find(char[], int, int, int, Listener)}.
+     */
+    interface Listener
+    {
+        /**
+         * Called for each occurrence, by increasing start.
+         * 
+         * @param index the index of the string
+         * @param start where the occurrence starts
+         */
+        void found(int index, int start);
+    }
+
+    /** Number of bits of each character in the hash of a block. */
+    private static final int BITS = 7;
+
+    /** Mask of the bits of each character in the hash of a block. */
+    private static final int MASK = (1 << BITS) - 1;
+
+    /** No candidate. */
+    private static final int[] NONE = new int[0];
+
+    /** The strings to search for. */
+    private final char[][] strings;
+
+    /** The length of the window, the length of the shortest string. */
+    private final int window;
+
+    /** The length of the longest string. */
+    private final int maxLength;
+
+    /** How far the window can move, by hash of its last 2 characters. */
+    private final byte[] shifts = new byte[1 << (2 * BITS)];
+
+    /** The indexes of the strings that can start with the window, by hash of its last 2 characters. */
+    private final int[][] candidates = new int[1 << (2 * BITS)][];
+
+    /**
+     * @param strings the strings to search for, of at least 2 characters
+     */
+    MultiStringMatcher(String... strings)
+    {
+        this.strings = new char[strings.length][];
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < strings.length; i++) {
+            this.strings[i] = strings[i].toCharArray();
+            min = Math.min(min, strings[i].length());
+            max = Math.max(max, strings[i].length());
+        }
+        if (min < 2 || min > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("The strings must have between 2 and 127 characters");
+        }
+        this.window = min;
+        this.maxLength = max;
+
+        Arrays.fill(this.shifts, (byte) (this.window - 1));
+        Arrays.fill(this.candidates, NONE);
+        for (int i = 0; i < strings.length; i++) {
+            // the blocks of the part of the string that fits in the window
+            for (int end = 1; end < this.window; end++) {
+                int hash = hash(this.strings[i][end - 1], this.strings[i][end]);
+                int shift = this.window - 1 - end;
+                if (shift < this.shifts[hash]) {
+                    this.shifts[hash] = (byte) shift;
+                }
+                if (shift == 0) {
+                    this.candidates[hash] = Arrays.copyOf(this.candidates[hash], this.candidates[hash].length + 1);
+                    this.candidates[hash][this.candidates[hash].length - 1] = i;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the length of the longest string: an occurrence starting at some position is only certain to be found
+     *         if the buffer holds this number of characters from that position
+     */
+    int getMaxLength()
+    {
+        return this.maxLength;
+    }
+
+    /**
+     * @param index the index of a string
+     * @return the length of the string
+     */
+    int getLength(int index)
+    {
+        return this.strings[index].length;
+    }
+
+    /**
+     * Find the occurrences starting in a part of a buffer.
+     * 
+     * @param chars the buffer
+     * @param from the first start to look at
+     * @param to the start where to stop looking
+     * @param limit the end of the characters in the buffer, which no occurrence goes beyond
+     * @param listener receives the occurrences
+     * @return the first start that was not looked at, at least {@code to} unless {@code limit} was reached
+     */
+    int find(char[] chars, int from, int to, int limit, Listener listener)
+    {
+        int start = from;
+        while (start < to) {
+            int end = start + this.window - 1;
+            if (end >= limit) {
+                break;
+            }
+            int hash = hash(chars[end - 1], chars[end]);
+            int shift = this.shifts[hash];
+            if (shift > 0) {
+                start += shift;
+            } else {
+                for (int index : this.candidates[hash]) {
+                    if (matches(chars, start, limit, this.strings[index])) {
+                        listener.found(index, start);
+                    }
+                }
+                start++;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * @param chars the buffer
+     * @param start where the string would start
+     * @param limit the end of the characters in the buffer
+     * @param string the string to compare with
+     * @return true if the buffer holds the string at the given position
+     */
+    private static boolean matches(char[] chars, int start, int limit, char[] string)
+    {
+        if (start + string.length > limit) {
+            return false;
+        }
+        for (int i = 0; i < string.length; i++) {
+            if (chars[start + i] != string[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param first the first character of a block
+     * @param second the second character of a block
+     * @return the hash of the block
+     */
+    private static int hash(char first, char second)
+    {
+        return ((first & MASK) << BITS) | (second & MASK);
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.escaping.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Response times and sizes of the requests sent by the escaping tests, grouped by tested file. Since the tests request
+ * every template and document with many parameters, this gives a profile of the rendering layer. The slowest and
+ * largest files, and the totals by skin or directory, are written in {@code target/escaping-profile.txt} at the end
+ * of the suites. The requests sent outside of a file test are only counted in a separate "(setup)" group.
+ * <p>
+ * The files skipped because their tests passed in a previous run (see {@link TestResultCache}) are not requested, so
+ * a complete profile needs a forced run.
+ * 
+ * @version $Id$
+ * @since 9.5RC1
+ */
+final class RequestProfile
+{
+    /** Where the report is written. */
+    private static final File FILE = new File("target/escaping-profile.txt");
+
+    /** Number of files listed in each ranking. */
+    private static final int RANKED = 50;
+
+    /** Nanoseconds in a millisecond. */
+    private static final double MS = 1000000;
+
+    /** Bytes in a KB. */
+    private static final double KB = 1024;
+
+    /** The measures of each file, by file name. */
+    private static final Map<String, Measures> FILES = new HashMap<>();
+
+    /** The requests not sent for a file (e.g. the login or the pages created by the setup), ranked as a group. */
+    private static final Measures SETUP = new Measures("(setup)");
+
+    /** Whether some requests were recorded since the last report. */
+    private static boolean modified;
+
+    /**
+     * The requests of one file, or of one group of files.
+     */
+    private static class Measures
+    {
+        /** The file name, or the group name. */
+        private final String name;
+
+        /** Number of requests. */
+        private int count;
+
+        /** Sum of the response times, in nanoseconds. */
+        private long totalTime;
+
+        /** Slowest response time, in nanoseconds. */
+        private long maxTime;
+
+        /** URL of the slowest request. */
+        private String slowestUrl;
+
+        /** Sum of the response sizes, in bytes. */
+        private long totalSize;
+
+        /** Largest response size, in bytes. */
+        private long maxSize;
+
+        /** URL of the largest response. */
+        private String largestUrl;
+
+        /**
+         * @param name the file name, or the group name
+         */
+        Measures(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * @param url the URL of the request
+         * @param time the response time in nanoseconds
+         * @param size the response size in bytes
+         */
+        void add(String url, long time, long size)
+        {
+            this.count++;
+            this.totalTime += time;
+            this.totalSize += size;
+            if (time >= this.maxTime) {
+                this.maxTime = time;
+                this.slowestUrl = url;
+            }
+            if (size >= this.maxSize) {
+                this.maxSize = size;
+                this.largestUrl = url;
+            }
+        }
+
+        /**
+         * @param other the measures to add to these
+         */
+        void add(Measures other)
+        {
+            this.count += other.count;
+            this.totalTime += other.totalTime;
+            this.totalSize += other.totalSize;
+            this.maxTime = Math.max(this.maxTime, other.maxTime);
+            this.maxSize = Math.max(this.maxSize, other.maxSize);
+        }
+    }
+
+    /**
+     * Utility class.
+     */
+    private RequestProfile()
+    {
+    }
+
+    /**
+     * Record a request.
+     * 
+     * @param fileName the tested file the request belongs to, null for the setup requests
+     * @param url the URL of the request
+     * @param time the response time in nanoseconds, including the download of the response
+     * @param size the response size in bytes
+     */
+    static synchronized void record(String fileName, String url, long time, long size)
+    {
+        Measures measures;
+        if (fileName == null) {
+            measures = SETUP;
+        } else {
+            measures = FILES.get(fileName);
+            if (measures == null) {
+                measures = new Measures(fileName);
+                FILES.put(fileName, measures);
+            }
+        }
+        measures.add(url, time, size);
+        modified = true;
+    }
+
+    /**
+     * Write the report, if some requests were recorded since it was last written.
+     */
+    static synchronized void write()
+    {
+        if (!modified) {
+            return;
+        }
+
+        List<Measures> files = new ArrayList<>(FILES.values());
+        Map<String, Measures> groups = new HashMap<>();
+        for (Measures file : files) {
+            String group = getGroup(file.name);
+            Measures measures = groups.get(group);
+            if (measures == null) {
+                measures = new Measures(group);
+                groups.put(group, measures);
+            }
+            measures.add(file);
+        }
+
+        StringBuilder report = new StringBuilder();
+        Collections.sort(files, new Comparator<Measures>()
+        {
+            @Override
+            public int compare(Measures m1, Measures m2)
+            {
+                return Long.compare(m2.maxTime, m1.maxTime);
+            }
+        });
+        appendRanking(report, "Slowest files, by slowest request", files, false);
+        Collections.sort(files, new Comparator<Measures>()
+        {
+            @Override
+            public int compare(Measures m1, Measures m2)
+            {
+                return Long.compare(m2.maxSize, m1.maxSize);
+            }
+        });
+        appendRanking(report, "Largest files, by largest response", files, true);
+        List<Measures> totals = new ArrayList<>(groups.values());
+        if (SETUP.count > 0) {
+            totals.add(SETUP);
+        }
+        Collections.sort(totals, new Comparator<Measures>()
+        {
+            @Override
+            public int compare(Measures m1, Measures m2)
+            {
+                return Long.compare(m2.totalTime, m1.totalTime);
+            }
+        });
+        appendRanking(report, "Skins and directories, by total time", totals, false);
+
+        try {
+            FileUtils.writeStringToFile(FILE, report.toString(), "UTF-8");
+            modified = false;
+        } catch (IOException exception) {
+            System.out.println("WARNING, Failed to write the request profile: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * @param fileName the name of a file
+     * @return the skin of the file (e.g. "skins/flamingo"), or its top directory (e.g. "templates" or the space of a
+     *         document)
+     */
+    private static String getGroup(String fileName)
+    {
+        String[] path = fileName.split("/");
+        if (path.length > 2 && path[0].equals("skins")) {
+            return path[0] + '/' + path[1];
+        }
+        return path[0];
+    }
+
+    /**
+     * @param report where to append the ranking
+     * @param title the title of the ranking
+     * @param ranked the measures, in order
+     * @param bySize true to show the URL of the largest response, false for the slowest request
+     */
+    private static void appendRanking(StringBuilder report, String title, List<Measures> ranked, boolean bySize)
+    {
+        report.append(title).append("\n\n");
+        report.append(String.format(Locale.ROOT, "%-60s %8s %10s %10s %10s %10s\n", "", "requests", "total ms",
+            "max ms", "total KB", "max KB"));
+        for (Measures measures : ranked.subList(0, Math.min(RANKED, ranked.size()))) {
+            report.append(String.format(Locale.ROOT, "%-60s %8d %10.1f %10.1f %10.1f %10.1f\n", measures.name,
+                measures.count, measures.totalTime / MS, measures.maxTime / MS, measures.totalSize / KB,
+                measures.maxSize / KB));
+            // the groups have no URL
+            String url = bySize ? measures.largestUrl : measures.slowestUrl;
+            if (url != null) {
+                report.append("    ").append(url).append('\n');
+            }
+        }
+        report.append('\n');
+    }
+}
@@ -19,31 +19,57 @@
  */
 package org.xwiki.test.escaping.framework;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.commons.configuration.PropertiesConfiguration;
+import org.apache.commons.io.FileUtils;
 import org.xwiki.test.integration.XWikiExecutor;
 
 /**
- * Starts and stops exactly one XWiki instance. The methods {@link #start()} and {@link #stop()}
- * allow to call them multiple times, starting and stopping the server only on the first and
- * last call respectively.
+ * Starts and stops exactly one set of XWiki instances, one instance by default. The methods {@link #start()} and
+ * {@link #stop()} allow to call them multiple times, starting and stopping the servers only on the first and last call
+ * respectively.
+ * <p>
+ * When the system property "escapingInstances" is greater than 1, as many instances are started and stopped in
+ * parallel, each on its own port (the port of the first instance plus the index) and in its own execution directory
+ * (a fresh copy of the execution directory of the first instance, unless the instance is already running). The tests
+ * are spread over the instances by {@link AbstractEscapingTest}.
  * 
  * @version $Id$
  * @since 2.5M1
  */
 public final class SingleXWikiExecutor extends XWikiExecutor
 {
+    /** Number of XWiki instances to use. */
+    private static final int INSTANCES = Math.max(1, Integer.getInteger("escapingInstances", 1));
+
     /** Singleton instance. */
     private static SingleXWikiExecutor executor = null;
 
     /** Call counter. */
     private static int counter = 0;
 
+    /** The executors of the instances, the first one being this executor. */
+    private final List<XWikiExecutor> instances = new ArrayList<>();
+
     /**
      * Create new SingleXWikiExecutor.
      */
     private SingleXWikiExecutor()
     {
         super(0);
+
+        this.instances.add(this);
+        for (int i = 1; i < INSTANCES; i++) {
+            this.instances.add(new XWikiExecutor(i));
+        }
     }
 
     /**
@@ -59,6 +85,25 @@ public static synchronized SingleXWikiExecutor getExecutor()
         return SingleXWikiExecutor.executor;
     }
 
+    /**
+     * @return the number of XWiki instances
+     * @since 9.5RC1
+     */
+    public static int getInstanceCount()
+    {
+        return INSTANCES;
+    }
+
+    /**
+     * @param index the index of the instance, between 0 and {@link #getInstanceCount()} excluded
+     * @return the executor of the instance, this executor for the first one
+     * @since 9.5RC1
+     */
+    public XWikiExecutor getInstance(int index)
+    {
+        return this.instances.get(index);
+    }
+
     /**
      * {@inheritDoc}
      * 
@@ -68,16 +113,26 @@ public static synchronized SingleXWikiExecutor getExecutor()
     public synchronized void start() throws Exception
     {
         if (counter == 0) {
-            if (!VERIFY_RUNNING_XWIKI_AT_START.equals("true") || isXWikiStarted(getURL(), 15).timedOut) {
-                // Disable extensions manager external repositories
-                PropertiesConfiguration properties = loadXWikiPropertiesConfiguration();
-                if (!properties.containsKey("extension.repositories")) {
-                    properties.setProperty("extension.repositories", "");
+            for (XWikiExecutor instance : this.instances) {
+                if (!VERIFY_RUNNING_XWIKI_AT_START.equals("true")
+                    || instance.isXWikiStarted(instance.getURL(), 15).timedOut) {
+                    if (instance != this) {
+                        // Copied again on each start, a copy left by a previous build would have a stale webapp and
+                        // database.
+                        File directory = new File(instance.getExecutionDirectory());
+                        FileUtils.deleteDirectory(directory);
+                        FileUtils.copyDirectory(new File(getExecutionDirectory()), directory);
+                    }
+                    // Disable extensions manager external repositories
+                    PropertiesConfiguration properties = instance.loadXWikiPropertiesConfiguration();
+                    if (!properties.containsKey("extension.repositories")) {
+                        properties.setProperty("extension.repositories", "");
+                    }
+                    instance.saveXWikiProperties(properties);
                 }
-                saveXWikiProperties(properties);
             }
 
-            super.start();
+            forEachInstance(true);
         }
         counter++;
     }
@@ -91,8 +146,64 @@ public synchronized void start() throws Exception
     public synchronized void stop() throws Exception
     {
         if (counter == 1) {
-            super.stop();
+            forEachInstance(false);
         }
         counter--;
     }
+
+    /**
+     * Start or stop all the instances in parallel and wait for them.
+     * 
+     * @param start true to start the instances, false to stop them
+     * @throws Exception the first error
+     */
+    private void forEachInstance(final boolean start) throws Exception
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(INSTANCES);
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (final XWikiExecutor instance : this.instances) {
+                results.add(pool.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        if (instance == SingleXWikiExecutor.this) {
+                            startOrStop(start);
+                        } else if (start) {
+                            instance.start();
+                        } else {
+                            instance.stop();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException exception) {
+                    Throwable cause = exception.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : exception;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Start or stop the first instance, bypassing the call counter.
+     * 
+     * @param start true to start the instance, false to stop it
+     * @throws Exception on errors
+     */
+    private void startOrStop(boolean start) throws Exception
+    {
+        if (start) {
+            super.start();
+        } else {
+            super.stop();
+        }
+    }
 }
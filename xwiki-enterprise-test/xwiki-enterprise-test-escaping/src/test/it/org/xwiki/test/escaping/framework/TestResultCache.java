@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.escaping.framework;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Test;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.TestClass;
+
+/**
+ * Remembers, from one run to the next, which test methods passed on which files. A result is only valid for the
+ * content of the file and the parameters found in it: both are hashed, and a test method counts as passed only if it
+ * passed with the same hash. The results are stored as a properties file, "test class file method" = hash.
+ * <p>
+ * The hash does not cover what the file uses (macros, other templates, the platform code), so a full run should be
+ * forced after those change, see {@link AbstractEscapingTest}. The results are saved by
+ * {@link AbstractEscapingTest#saveTestResults()}.
+ * 
+ * @version $Id$
+ * @since 9.5RC1
+ */
+final class TestResultCache
+{
+    /** Where the results are stored, outside of target so that they survive a clean build. */
+    private static final File FILE = new File(System.getProperty("escapingCache",
+        System.getProperty("user.home") + "/.xwiki/escaping-cache.properties"));
+
+    /** The names of the test methods of each test class. */
+    private static final Map<Class<?>, List<String>> TEST_METHODS = new ConcurrentHashMap<>();
+
+    /** The stored results, loaded on the first use. */
+    private static Properties results;
+
+    /** Whether some results changed since the last save. */
+    private static boolean modified;
+
+    /**
+     * Utility class.
+     */
+    private TestResultCache()
+    {
+    }
+
+    /**
+     * Hash the content of a file with the parameters that were found in it.
+     * 
+     * @param content the content of the tested file
+     * @param parameters the parameters found in the file
+     * @return the hash the results of the file are stored with
+     */
+    static String hash(String content, Set<String> parameters)
+    {
+        return DigestUtils.sha1Hex(content + '\n' + new TreeSet<String>(parameters));
+    }
+
+    /**
+     * @param testClass the test class
+     * @param fileName the name of the tested file
+     * @param hash the hash of the tested file, see {@link #hash(String, Set)}
+     * @return true if all the test methods of the class passed on the file, with the same hash, in a previous run
+     */
+    static synchronized boolean hasPassed(Class<?> testClass, String fileName, String hash)
+    {
+        for (String method : getTestMethods(testClass)) {
+            if (!hash.equals(getResults().getProperty(getKey(testClass, fileName, method)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record the result of a test method on a file.
+     * 
+     * @param testClass the test class
+     * @param fileName the name of the tested file
+     * @param method the name of the test method
+     * @param hash the hash of the tested file, see {@link #hash(String, Set)}
+     * @param passed whether the test method passed
+     */
+    static synchronized void setResult(Class<?> testClass, String fileName, String method, String hash,
+        boolean passed)
+    {
+        String key = getKey(testClass, fileName, method);
+        if (passed) {
+            getResults().setProperty(key, hash);
+        } else {
+            getResults().remove(key);
+        }
+        modified = true;
+    }
+
+    /**
+     * Write the results recorded since the last save.
+     */
+    static synchronized void save()
+    {
+        if (!modified) {
+            return;
+        }
+        File parent = FILE.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        try {
+            OutputStream out = new FileOutputStream(FILE);
+            try {
+                getResults().store(out, "Escaping test results, delete this file to run all the tests again");
+            } finally {
+                out.close();
+            }
+            modified = false;
+        } catch (IOException exception) {
+            System.out.println("WARNING, Failed to save the escaping test results: " + exception.getMessage());
+        }
+    }
+
+    /**
+     * @return the stored results, read from the file on the first call
+     */
+    private static Properties getResults()
+    {
+        if (results == null) {
+            results = new Properties();
+            if (FILE.isFile()) {
+                try {
+                    InputStream in = new FileInputStream(FILE);
+                    try {
+                        results.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException exception) {
+                    System.out.println("WARNING, Failed to read the escaping test results, running all the tests: "
+                        + exception.getMessage());
+                    results.clear();
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @param testClass the test class
+     * @return the names of the methods annotated with &#064;{@link Test}
+     */
+    private static List<String> getTestMethods(Class<?> testClass)
+    {
+        List<String> methods = TEST_METHODS.get(testClass);
+        if (methods == null) {
+            methods = new ArrayList<>();
+            for (FrameworkMethod method : new TestClass(testClass).getAnnotatedMethods(Test.class)) {
+                methods.add(method.getName());
+            }
+            TEST_METHODS.put(testClass, methods);
+        }
+        return methods;
+    }
+
+    private static String getKey(Class<?> testClass, String fileName, String method)
+    {
+        return testClass.getName() + ' ' + fileName + ' ' + method;
+    }
+}
@@ -1,29 +1,12 @@
-/*
- * See the NOTICE file distributed with this work for additional
- * information regarding copyright ownership.
- *
- * This is free software; you can redistribute it and/or modify it
- * under the terms of the GNU Lesser General Public License as
- * published by the Free Software Foundation; either version 2.1 of
- * the License, or (at your option) any later version.
- *
- * This software is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
- * Lesser General Public License for more details.
- *
- * You should have received a copy of the GNU Lesser General Public
- * License along with this software; if not, write to the Free
- * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
- * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
- */
 package org.xwiki.test.escaping.framework;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.xwiki.validator.ValidationError;
@@ -33,6 +16,10 @@
 /**
  * A validator that checks for proper XML escaping. The document must be constructed using the special test input string
  * (see {@link #getTestString()}).
+ * <p>
+ * The document is decoded as UTF-8 and read only once, when it is validated: all the searched strings are found in a
+ * single pass by a {@link MultiStringMatcher}, which only remembers where they start on the current line. The checks
+ * themselves run at the end of each line, on these positions.
  * 
  * @version $Id$
  * @since 2.5M1
@@ -60,12 +47,55 @@ public class XMLEscapingValidator implements Validator
     /** JavaScript-escaped TEST_QUOT. */
     private static final String TEST_JS_QUOT = "aaa\\\"bbb";
 
-    /** Source of the XML document to validate. */
-    private List<String> document = new ArrayList<String>();
+    /** Error traces reported as warnings, with their messages, checked once per line. */
+    private static final String[][] WARNINGS = {
+        {"Error while parsing velocity page", "Parse error in the response. The template was not evaluated correctly."},
+        {"org.xwiki.rendering.macro.MacroExecutionException", "Macro execution exception in the response."},
+        {"Wrapped Exception: unexpected char:", "Possible SQL error trace."}};
+
+    /** Index of TEST_APOS in the matcher, followed by the other test strings and by the warnings. */
+    private static final int APOS = 0;
+
+    /** Index of TEST_QUOT in the matcher. */
+    private static final int QUOT = 1;
+
+    /** Index of TEST_LT in the matcher. */
+    private static final int LT = 2;
+
+    /** Index of TEST_GT in the matcher. */
+    private static final int GT = 3;
+
+    /** Index of TEST_JS_APOS in the matcher. */
+    private static final int JS_APOS = 4;
+
+    /** Index of TEST_JS_QUOT in the matcher. */
+    private static final int JS_QUOT = 5;
+
+    /** Index of the first warning in the matcher. */
+    private static final int FIRST_WARNING = 6;
+
+    /** Finds all the strings above. */
+    private static final MultiStringMatcher MATCHER = new MultiStringMatcher(TEST_APOS, TEST_QUOT, TEST_LT, TEST_GT,
+        TEST_JS_APOS, TEST_JS_QUOT, WARNINGS[0][0], WARNINGS[1][0], WARNINGS[2][0]);
+
+    /** Size of the buffer the document is decoded into. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Source of the XML document to validate, null once read. */
+    private InputStream document;
 
     /** List of validation errors. */
     private List<ValidationError> errors = new ArrayList<ValidationError>();
 
+    /** Where each string of {@link #MATCHER} starts on the current line, in increasing order. */
+    private final int[][] lineMatches = new int[FIRST_WARNING + WARNINGS.length][16];
+
+    /** The number of starts of each string in {@link #lineMatches}. */
+    private final int[] lineMatchCounts = new int[FIRST_WARNING + WARNINGS.length];
+
+    /** Whether a string was found on the current line, most lines having none. */
+    private boolean lineMatched;
+
     /**
      * Get the input string containing XML significant characters that should be used.
      * 
@@ -79,7 +109,7 @@ public static String getTestString()
     /**
      * {@inheritDoc}
      * <p>
-     * Clears previous list of validation errors.
+     * Clears previous list of validation errors. The document is read by {@link #validate()}.
      * </p>
      * 
      * @see org.xwiki.validator.Validator#setDocument(java.io.InputStream)
@@ -87,22 +117,14 @@ public static String getTestString()
     @Override
     public void setDocument(InputStream document)
     {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(document));
-        String line;
-        this.document = new ArrayList<String>();
-        try {
-            while ((line = reader.readLine()) != null) {
-                this.document.add(line);
-            }
-        } catch (IOException exception) {
-            throw new RuntimeException("Could not read document: ", exception);
-        }
+        this.document = document;
         clear();
     }
 
     /**
      * {@inheritDoc}
      * <p>
+     * Reads the document set by {@link #setDocument(InputStream)}; validating it again returns the same errors.
      * Throws {@link EscapingError} on errors.
      * </p>
      * 
@@ -111,52 +133,108 @@ public void setDocument(InputStream document)
     @Override
     public List<ValidationError> validate()
     {
+        if (this.document == null) {
+            return this.errors;
+        }
         clear();
 
-        int lineNr = 1;
-        for (String line : this.document) {
-            checkStringDelimiters(line, lineNr);
-            checkTagDelimiter(line, lineNr, TEST_LT, "Unescaped < character");
-            checkTagDelimiter(line, lineNr, TEST_GT, "Unescaped > character");
-
-            int idx;
-            if ((idx = line.indexOf("Error while parsing velocity page")) >= 0) {
-                this.errors.add(new ValidationError(Type.WARNING, lineNr, idx,
-                    "Parse error in the response. The template was not evaluated correctly."));
-            }
-            if ((idx = line.indexOf("org.xwiki.rendering.macro.MacroExecutionException")) >= 0) {
-                this.errors.add(new ValidationError(Type.WARNING, lineNr, idx,
-                    "Macro execution exception in the response."));
-            }
-            if ((idx = line.indexOf("Wrapped Exception: unexpected char:")) >= 0) {
-                this.errors.add(new ValidationError(Type.WARNING, lineNr, idx, "Possible SQL error trace."));
+        Reader reader = new InputStreamReader(this.document, StandardCharsets.UTF_8);
+        DocumentScan scan = new DocumentScan();
+        try {
+            int next = 0;
+            while (true) {
+                int read = reader.read(scan.buffer, scan.length, scan.buffer.length - scan.length);
+                if (read < 0) {
+                    MATCHER.find(scan.buffer, next, scan.length, scan.length, scan);
+                    scan.scanLines(scan.length);
+                    checkLine(scan.lineNr);
+                    break;
+                }
+                scan.length += read;
+                // keep the starts whose strings could end after the buffer for the next round
+                next = MATCHER.find(scan.buffer, next, scan.length - MATCHER.getMaxLength() + 1, scan.length, scan);
+                scan.scanLines(next);
+                next -= scan.shift();
             }
-            // TODO also check \ for JavaScript
-            // TODO check for overescaping
-            lineNr++;
+            this.document.close();
+        } catch (IOException exception) {
+            throw new RuntimeException("Could not read document: ", exception);
         }
+        this.document = null;
         return this.errors;
     }
 
+    /**
+     * Report the problems found on a line, in the order of the former line by line checks, and forget its matches.
+     * 
+     * @param lineNr line number reported on failures
+     */
+    private void checkLine(int lineNr)
+    {
+        if (!this.lineMatched) {
+            return;
+        }
+        checkStringDelimiters(lineNr);
+        checkTagDelimiter(lineNr, LT, TEST_LT, "Unescaped < character");
+        checkTagDelimiter(lineNr, GT, TEST_GT, "Unescaped > character");
+
+        for (int i = 0; i < WARNINGS.length; i++) {
+            if (this.lineMatchCounts[FIRST_WARNING + i] > 0) {
+                this.errors.add(
+                    new ValidationError(Type.WARNING, lineNr, this.lineMatches[FIRST_WARNING + i][0], WARNINGS[i][1]));
+            }
+        }
+        // TODO also check \ for JavaScript
+        // TODO check for overescaping
+
+        Arrays.fill(this.lineMatchCounts, 0);
+        this.lineMatched = false;
+    }
+
+    /**
+     * @param index the index of a string in the matcher
+     * @param start where the string starts on the current line
+     */
+    private void addLineMatch(int index, int start)
+    {
+        int count = this.lineMatchCounts[index];
+        if (count == this.lineMatches[index].length) {
+            this.lineMatches[index] = Arrays.copyOf(this.lineMatches[index], 2 * count);
+        }
+        this.lineMatches[index][count] = start;
+        this.lineMatchCounts[index] = count + 1;
+        this.lineMatched = true;
+    }
+
+    /**
+     * @param index the index of a string in the matcher
+     * @param start a column
+     * @return the position of the column in the starts of the string on the current line, as returned by
+     *         {@link Arrays#binarySearch(int[], int, int, int)}
+     */
+    private int findLineMatch(int index, int start)
+    {
+        return Arrays.binarySearch(this.lineMatches[index], 0, this.lineMatchCounts[index], start);
+    }
+
     /**
      * Check whether < and > are properly escaped. Attempts to avoid false positives caused by JavaScript escaping.
      * Found problems are added to the internal list of escaping errors.
      * 
-     * @param line the line to check
      * @param lineNr line number reported on failures
-     * @param testMatch the test string to search for, e.g. TEST_LT
+     * @param testIndex the index of the test string in the matcher, e.g. LT
+     * @param testMatch the test string, e.g. TEST_LT
      * @param errorMessage error message to use on failures
      */
-    private void checkTagDelimiter(String line, int lineNr, String testMatch, String errorMessage)
+    private void checkTagDelimiter(int lineNr, int testIndex, String testMatch, String errorMessage)
     {
         // NOTE this method produces false NEGATIVES if JavaScript escaping is used where XML/URL escaping is needed
-        int idx = 0;
-        while ((idx = line.indexOf(testMatch, idx)) >= 0) {
+        for (int i = 0; i < this.lineMatchCounts[testIndex]; i++) {
+            int idx = this.lineMatches[testIndex][i];
             // avoid false positives caused by JavaScript escaping
-            if (!isJavascriptEscaped(line, testMatch, idx)) {
+            if (!isJavascriptEscaped(testMatch, idx)) {
                 this.errors.add(new ValidationError(Type.ERROR, lineNr, idx, errorMessage));
             }
-            idx++;
         }
     }
 
@@ -165,30 +243,25 @@ private void checkTagDelimiter(String line, int lineNr, String testMatch, String
      * inside tags (where only <, > and & are escaped). Found problems are added to the internal list of escaping
      * errors.
      * 
-     * @param line the line to check
      * @param lineNr line number reported on failures
      */
-    private void checkStringDelimiters(String line, int lineNr)
+    private void checkStringDelimiters(int lineNr)
     {
         // NOTE this method produces false NEGATIVES if XML-tag escaping method is used inside tag attributes (unlikely)
         final int offset = INPUT_STRING.indexOf(TEST_APOS) - INPUT_STRING.indexOf(TEST_QUOT);
-        int idx = 0;
-        while ((idx = line.indexOf(TEST_APOS, idx)) >= 0) {
+        for (int i = 0; i < this.lineMatchCounts[APOS]; i++) {
+            int idx = this.lineMatches[APOS][i];
             // ignore if quote was not escaped either
-            int expected_idx = idx - offset;
-            if (expected_idx < 0 || line.indexOf(TEST_QUOT, expected_idx) != expected_idx) {
+            if (findLineMatch(QUOT, idx - offset) < 0) {
                 this.errors.add(new ValidationError(Type.WARNING, lineNr, idx, "Unescaped ' character"));
             }
-            idx++;
         }
-        idx = 0;
-        while ((idx = line.indexOf(TEST_QUOT, idx)) >= 0) {
+        for (int i = 0; i < this.lineMatchCounts[QUOT]; i++) {
+            int idx = this.lineMatches[QUOT][i];
             // ignore if apostrophe was not escaped either
-            int expected_idx = idx + offset;
-            if (expected_idx < 0 || line.indexOf(TEST_APOS, expected_idx) != expected_idx) {
+            if (findLineMatch(APOS, idx + offset) < 0) {
                 this.errors.add(new ValidationError(Type.WARNING, lineNr, idx, "Unescaped \" character"));
             }
-            idx++;
         }
     }
 
@@ -196,12 +269,11 @@ private void checkStringDelimiters(String line, int lineNr)
      * Check if the matched test string appears to be JavaScript-escaped. Checks whether both ' and " appearing in the
      * test string right before index are JavaScript-escaped. Used to avoid false positives in {@link #validate()}.
      * 
-     * @param line the line where the string was matched
      * @param match substring of the test string that was matched, e.g. TEST_APOS
-     * @param index position where the match was found in line, as reported by {@link String#indexOf(String, int)}
+     * @param index position where the match was found on the current line
      * @return true if the found input string is JavaScript-escaped, false otherwise
      */
-    private boolean isJavascriptEscaped(String line, String match, int index)
+    private boolean isJavascriptEscaped(String match, int index)
     {
         int offset = INPUT_STRING.indexOf(match);
         if (index < 0 || offset < 0) {
@@ -209,9 +281,22 @@ private boolean isJavascriptEscaped(String line, String match, int index)
         }
         // JavaScript-escaping adds 2 characters
         offset += 2;
-        int pos_apos = line.indexOf(TEST_JS_APOS, index - offset);
-        int pos_quot = line.indexOf(TEST_JS_QUOT, index - offset);
-        return (pos_apos >= 0 && pos_apos < index && pos_quot >= 0 && pos_quot < index);
+        return startsBetween(JS_APOS, index - offset, index) && startsBetween(JS_QUOT, index - offset, index);
+    }
+
+    /**
+     * @param testIndex the index of a string in the matcher
+     * @param from the first column, inclusive
+     * @param to the last column, exclusive
+     * @return true if the string starts between the two columns on the current line
+     */
+    private boolean startsBetween(int testIndex, int from, int to)
+    {
+        int position = findLineMatch(testIndex, from);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        return position < this.lineMatchCounts[testIndex] && this.lineMatches[testIndex][position] < to;
     }
 
     @Override
@@ -231,4 +316,78 @@ public String getName()
     {
         return "XML ESCAPING";
     }
+
+    /**
+     * The state of the reading of the document: the characters that still need to be looked at, and the current line.
+     * The line terminators are the ones of {@link java.io.BufferedReader#readLine()}: \n, \r or \r\n.
+     */
+    private class DocumentScan implements MultiStringMatcher.Listener
+    {
+        /** The decoded characters, the end of the previous read being kept at the start. */
+        private final char[] buffer = new char[BUFFER_SIZE + MATCHER.getMaxLength()];
+
+        /** The number of characters in the buffer. */
+        private int length;
+
+        /** The position of the first character of the buffer in the document. */
+        private long bufferStart;
+
+        /** The first character of the buffer not checked for line terminators. */
+        private int scanned;
+
+        /** The number of the current line. */
+        private int lineNr = 1;
+
+        /** The position of the current line in the document. */
+        private long lineStart;
+
+        /** The position of the last carriage return in the document. */
+        private long lastCarriageReturn = -2;
+
+        @Override
+        public void found(int index, int start)
+        {
+            // the lines before must be complete before the match is added to the current one
+            scanLines(start);
+            addLineMatch(index, (int) (this.bufferStart + start - this.lineStart));
+        }
+
+        /**
+         * Go to the line of a character, checking the lines on the way.
+         * 
+         * @param upTo the character, excluded
+         */
+        private void scanLines(int upTo)
+        {
+            for (int i = this.scanned; i < upTo; i++) {
+                char c = this.buffer[i];
+                if (c == '\n' || c == '\r') {
+                    long position = this.bufferStart + i;
+                    if (c == '\r' || position != this.lastCarriageReturn + 1) {
+                        checkLine(this.lineNr++);
+                    }
+                    if (c == '\r') {
+                        this.lastCarriageReturn = position;
+                    }
+                    this.lineStart = position + 1;
+                }
+            }
+            this.scanned = Math.max(this.scanned, upTo);
+        }
+
+        /**
+         * Drop the characters that were looked at, to make room for the next read.
+         * 
+         * @return the number of dropped characters
+         */
+        private int shift()
+        {
+            int dropped = this.scanned;
+            System.arraycopy(this.buffer, dropped, this.buffer, 0, this.length - dropped);
+            this.length -= dropped;
+            this.bufferStart += dropped;
+            this.scanned = 0;
+            return dropped;
+        }
+    }
 }
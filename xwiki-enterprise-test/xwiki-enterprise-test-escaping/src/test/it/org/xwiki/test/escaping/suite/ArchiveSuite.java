@@ -29,10 +29,17 @@
 import java.lang.annotation.Target;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -49,6 +56,7 @@
 import org.junit.runners.model.FrameworkMethod;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.RunnerBuilder;
+import org.junit.runners.model.RunnerScheduler;
 import org.junit.runners.model.Statement;
 import org.junit.runners.model.TestClass;
 
@@ -68,10 +76,17 @@
  * The lifetime of each {@link FileTest} is as follows:
  * <ul>
  * <li>An instance of the file test class is created.</li>
- * <li>The method {@link #initialize(String, Reader)} is called.</li>
+ * <li>The method {@link FileTest#initialize(String, Reader)} is called.</li>
  * <li>The stream associated with the {@link Reader} that was used to initialize the test is closed.</li>
  * <li>All methods marked with the &#064;{@link Test} annotation are called.</li>
  * </ul></p>
+ * <p>
+ * The file tests are created and initialized in parallel, one thread per processor, so the test class must be thread
+ * safe during the initialization. The files are decoded as UTF-8, and only read if the test reads the {@link Reader}:
+ * tests should check the file name first.</p>
+ * <p>
+ * The file tests are run sequentially, unless the system property "escapingThreads" is greater than 1, in which case
+ * they are scheduled on a pool of that many threads. The test class must then be thread safe.</p>
  * 
  * @version $Id$
  * @since 2.5M1
@@ -142,6 +157,83 @@ public class ArchiveSuite extends ParentRunner<Runner>
     /** Path to the archive. */
     private final String archivePath;
 
+    /**
+     * Reads an archive entry as UTF-8, opening it on the first read.
+     */
+    private static class EntryReader extends Reader
+    {
+        /** The archive. */
+        private final ZipFile archive;
+
+        /** The entry to read. */
+        private final ZipEntry entry;
+
+        /** The reader of the entry, null until the first read. */
+        private Reader reader;
+
+        /**
+         * @param archive the archive
+         * @param entry the entry to read
+         */
+        EntryReader(ZipFile archive, ZipEntry entry)
+        {
+            this.archive = archive;
+            this.entry = entry;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException
+        {
+            if (this.reader == null) {
+                this.reader = new InputStreamReader(this.archive.getInputStream(this.entry), StandardCharsets.UTF_8);
+            }
+            return this.reader.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (this.reader != null) {
+                this.reader.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the file tests on a fixed pool of threads, and waits for all of them to finish.
+     */
+    private static class PooledScheduler implements RunnerScheduler
+    {
+        /** The worker threads. */
+        private final ExecutorService executor;
+
+        /**
+         * @param threads the number of worker threads
+         */
+        PooledScheduler(int threads)
+        {
+            this.executor = Executors.newFixedThreadPool(threads);
+        }
+
+        @Override
+        public void schedule(Runnable childStatement)
+        {
+            this.executor.execute(childStatement);
+        }
+
+        @Override
+        public void finished()
+        {
+            this.executor.shutdown();
+            try {
+                this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException exception) {
+                this.executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
 
     /**
      * Create new ArchiveSuite.
@@ -156,6 +248,11 @@ public ArchiveSuite(Class<?> klass, RunnerBuilder builder) throws Initialization
         validateTestClass();
         this.archivePath = getArchiveFromAnnotation();
         this.runners = createRunners(this.archivePath);
+
+        int threads = Integer.getInteger("escapingThreads", 1);
+        if (threads > 1) {
+            setScheduler(new PooledScheduler(threads));
+        }
     }
 
     @Override
@@ -199,7 +296,8 @@ public int compare(Description o1, Description o2) {
     }
 
     /**
-     * Read the archive and build a list of runners for its content.
+     * Read the archive and build a list of runners for its content. The tests are initialized in parallel, the list
+     * keeping the order of the archive.
      * 
      * @param archivePath path to the archive to use
      * @return a list of test runners
@@ -208,20 +306,47 @@ public int compare(Description o1, Description o2) {
     private List<Runner> createRunners(String archivePath) throws InitializationError
     {
         List<Runner> list = new ArrayList<Runner>();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
         try {
             final ZipFile archive = new ZipFile(archivePath);
-            Enumeration< ? extends ZipEntry> entries = archive.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                if (entry.isDirectory()) {
-                    continue;
+            try {
+                List<Future<Runner>> tests = new ArrayList<Future<Runner>>();
+                Enumeration< ? extends ZipEntry> entries = archive.entries();
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    tests.add(executor.submit(new Callable<Runner>()
+                    {
+                        @Override
+                        public Runner call() throws InitializationError
+                        {
+                            return createTest(entry.getName(), new EntryReader(archive, entry));
+                        }
+                    }));
+                }
+                for (Future<Runner> test : tests) {
+                    Runner runner = test.get();
+                    if (runner != null) {
+                        list.add(runner);
+                    }
                 }
-                Reader reader = new InputStreamReader(archive.getInputStream(entry));
-                addTest(list, entry.getName(), reader);
+            } finally {
+                archive.close();
             }
-            archive.close();
         } catch (IOException exception) {
             throw new InitializationError(exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InitializationError(exception);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof InitializationError) {
+                throw (InitializationError) exception.getCause();
+            }
+            throw new InitializationError(exception.getCause());
+        } finally {
+            executor.shutdownNow();
         }
         return list;
     }
@@ -230,19 +355,24 @@ private List<Runner> createRunners(String archivePath) throws InitializationErro
      * Create and initialize an instance of the test class for given file.
      * 
      * @param name file name to use
-     * @param reader the reader associated with the file data
+     * @param reader the reader associated with the file data, closed after the initialization
+     * @return the runner of the test, or null if the test does not apply to the file
      * @throws InitializationError on errors
      */
-    private void addTest(List<Runner> list, String name, Reader reader) throws InitializationError
+    private Runner createTest(String name, Reader reader) throws InitializationError
     {
         try {
             Object result = getTestClass().getOnlyConstructor().newInstance();
             if (result instanceof FileTest) {
                 FileTest test = (FileTest) result;
-                if (test.initialize(name, reader)) {
-                    list.add(new FileTestRunner(test));
+                try {
+                    if (test.initialize(name, reader)) {
+                        return new FileTestRunner(test);
+                    }
+                    return null;
+                } finally {
+                    reader.close();
                 }
-                return;
             }
         } catch (Exception exception) {
             // should not happen, since the test class was validated before
@@ -19,8 +19,12 @@
  */
 package org.xwiki.test.jmeter;
 
+import java.util.List;
+
 import org.junit.runner.RunWith;
+import org.xwiki.test.integration.XWikiExecutor;
 import org.xwiki.test.integration.XWikiExecutorSuite;
+import org.xwiki.test.jmeter.framework.AbstractPerformanceTest;
 
 /**
  * Runs all functional tests found in the classpath and start/stop XWiki before/after the tests (only once).
@@ -30,4 +34,9 @@
 @RunWith(XWikiExecutorSuite.class)
 public class AllTests
 {
+    @XWikiExecutorSuite.PreStart
+    public void preStart(List<XWikiExecutor> executors) throws Exception
+    {
+        AbstractPerformanceTest.setExecutor(executors.get(0));
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.jmeter.protocol.http.sampler.HTTPSampler;
+import org.junit.Test;
+import org.xwiki.test.jmeter.framework.AbstractPerformanceTest;
+import org.xwiki.test.jmeter.framework.PerformanceReport;
+import org.xwiki.test.jmeter.framework.SampleStatistics;
+import org.xwiki.test.jmeter.framework.Scenario;
+
+/**
+ * Runs the same throughput scenario with the XWiki JVM restricted to an increasing number of cores and computes the
+ * scaling efficiency, i.e. the throughput gained per added core compared to the smallest configuration. A flat curve
+ * points at contention (global locks, synchronized caches) rather than at a lack of CPU.
+ * <p>
+ * The JVM is restricted with {@code -XX:ActiveProcessorCount}, which sizes the thread pools and the garbage
+ * collector. On Linux the process is also pinned to the first cores with {@code taskset} so that it really cannot use
+ * more of them.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>scalingCores (optional): comma separated numbers of cores, the ones above the available cores are skipped (the
+ * available cores are used when all of them are)</li>
+ * <li>scalingThreads (optional): number of concurrent clients, defaults to twice the largest number of cores</li>
+ * <li>scalingLoops (optional): how many times each client goes through the scenario</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class CoreScalingTest extends AbstractPerformanceTest
+{
+    private final int[] cores = getIntegers("scalingCores", "1,2,4,8,16");
+
+    private final int loops = Integer.getInteger("scalingLoops", 3);
+
+    @Test
+    public void scaling() throws Exception
+    {
+        PerformanceReport report = new PerformanceReport("core-scaling", "cores", "throughput (req/s)",
+            "mean latency (ms)", "p99 latency (ms)", "errors", "speedup", "efficiency (%)");
+        report.addChart(0, 1);
+        report.addChart(0, 3);
+
+        int available = Runtime.getRuntime().availableProcessors();
+        List<Integer> coreCounts = new ArrayList<Integer>();
+        for (int count : this.cores) {
+            if (count <= available) {
+                coreCounts.add(count);
+            } else {
+                report.addNote(count + " cores skipped, only " + available + " are available");
+            }
+        }
+        if (coreCounts.isEmpty()) {
+            coreCounts.add(available);
+        }
+        int threads = Integer.getInteger("scalingThreads", 2 * coreCounts.get(coreCounts.size() - 1));
+
+        List<HTTPSampler> samplers = new ArrayList<HTTPSampler>();
+        Scenario.addXarFiles(samplers);
+
+        double baseThroughput = 0;
+        try {
+            for (int count : coreCounts) {
+                restartXWiki("-XX:ActiveProcessorCount=" + count);
+                if (!restrictAffinity(count)) {
+                    report.addNote("The CPU affinity could not be set for " + count
+                        + " cores, only -XX:ActiveProcessorCount applies");
+                }
+
+                // Warm up the caches and the JIT before measuring.
+                new Scenario(samplers).setThreads(threads).run();
+                SampleStatistics statistics = new Scenario(samplers).setThreads(threads).setLoops(this.loops).run();
+
+                if (baseThroughput == 0) {
+                    baseThroughput = statistics.getThroughput() / count;
+                }
+                double speedup = statistics.getThroughput() / (baseThroughput * coreCounts.get(0));
+                double efficiency = 100 * statistics.getThroughput() / (baseThroughput * count);
+                report.addRow(count, statistics.getThroughput(), statistics.getMeanLatency(),
+                    statistics.getPercentile(99), statistics.getErrors(), speedup, efficiency);
+            }
+        } finally {
+            restartXWiki("");
+        }
+
+        report.write();
+    }
+
+    /**
+     * Pin every thread of the XWiki process to the first cores, on Linux only.
+     *
+     * @param count the number of cores to use
+     * @return false if the affinity could not be set on Linux
+     */
+    private boolean restrictAffinity(int count) throws Exception
+    {
+        if (SystemUtils.IS_OS_LINUX) {
+            try {
+                return new ProcessBuilder("taskset", "-a", "-c", "-p", "0-" + (count - 1),
+                    getMonitor().getProcessId()).inheritIO().start().waitFor() == 0;
+            } catch (IOException e) {
+                // taskset is not installed.
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jmeter.protocol.http.sampler.HTTPSampler;
+import org.junit.Test;
+import org.xwiki.test.jmeter.framework.AbstractPerformanceTest;
+import org.xwiki.test.jmeter.framework.PerformanceReport;
+import org.xwiki.test.jmeter.framework.SampleStatistics;
+import org.xwiki.test.jmeter.framework.Scenario;
+import org.xwiki.test.jmeter.framework.ServerMonitor;
+
+/**
+ * Runs the standard throughput scenario against XWiki started with each garbage collector, with the same heap
+ * settings, and compares the throughput, the latency, the longest pause and the memory footprint. The idea is to
+ * choose the options recommended in {@code start_xwiki.sh} and the Debian installers from figures.
+ * <p>
+ * Collectors not supported by the JVM are skipped, with a note in the report. The heap settings are the ones of the
+ * {@code xwikiOpts} property.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>gcCollectors (optional): comma separated collectors to compare, among G1, Parallel, Z and Shenandoah</li>
+ * <li>gcThreads (optional): number of concurrent clients</li>
+ * <li>gcLoops (optional): how many times each client goes through the scenario</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class GarbageCollectorTest extends AbstractPerformanceTest
+{
+    private static final Map<String, String> COLLECTOR_OPTIONS = new LinkedHashMap<String, String>()
+    {
+        {
+            put("G1", "-XX:+UseG1GC");
+            put("Parallel", "-XX:+UseParallelGC");
+            put("Z", "-XX:+UseZGC");
+            put("Shenandoah", "-XX:+UseShenandoahGC");
+        }
+    };
+
+    private static final String UNLOCK_EXPERIMENTAL = "-XX:+UnlockExperimentalVMOptions";
+
+    private final String[] collectors =
+        System.getProperty("gcCollectors", "G1,Parallel,Z,Shenandoah").split("\\s*,\\s*");
+
+    private final int threads = Integer.getInteger("gcThreads", 20);
+
+    private final int loops = Integer.getInteger("gcLoops", 3);
+
+    @Test
+    public void collectors() throws Exception
+    {
+        List<HTTPSampler> samplers = new ArrayList<HTTPSampler>();
+        Scenario.addXarFiles(samplers);
+
+        PerformanceReport report = new PerformanceReport("garbage-collectors", "collector", "throughput (req/s)",
+            "p99 latency (ms)", "max pause (ms)", "peak RSS (MB)", "errors", "options");
+        report.addChart(0, 1);
+        report.addChart(0, 2);
+        report.addChart(0, 3);
+
+        try {
+            for (String collector : this.collectors) {
+                if (!COLLECTOR_OPTIONS.containsKey(collector)) {
+                    report.addNote("The " + collector + " collector was skipped, it is unknown");
+                    continue;
+                }
+                String options = getSupportedOptions(COLLECTOR_OPTIONS.get(collector));
+                if (options == null) {
+                    report.addNote("The " + collector + " collector was skipped, it is not supported by "
+                        + System.getProperty("java.vm.name") + ' ' + System.getProperty("java.version"));
+                    continue;
+                }
+
+                restartXWiki(options);
+
+                // Warm up the caches and the JIT before measuring.
+                new Scenario(samplers).setThreads(this.threads).run();
+                getMonitor().recordGCPauses();
+                SampleStatistics statistics =
+                    new Scenario(samplers).setThreads(this.threads).setLoops(this.loops).run();
+
+                report.addRow(collector, statistics.getThroughput(), statistics.getPercentile(99),
+                    getMonitor().getMaxGCPause(), getMonitor().getPeakResidentSetSize() / ServerMonitor.MB,
+                    statistics.getErrors(), DEFAULT_XWIKI_OPTS + ' ' + options);
+            }
+        } finally {
+            restartXWiki("");
+        }
+
+        report.write();
+    }
+
+    /**
+     * Check the collector options against the JVM running the tests, which is the one used to start XWiki.
+     *
+     * @param options the options selecting the collector
+     * @return the options to use, with the experimental options unlocked if needed, or null if the collector is not
+     *         supported
+     */
+    private String getSupportedOptions(String options) throws InterruptedException
+    {
+        if (options != null) {
+            if (isSupported(options)) {
+                return options;
+            } else if (isSupported(UNLOCK_EXPERIMENTAL + ' ' + options)) {
+                return UNLOCK_EXPERIMENTAL + ' ' + options;
+            }
+        }
+
+        return null;
+    }
+
+    private boolean isSupported(String options) throws InterruptedException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        for (String option : options.split(" ")) {
+            command.add(option);
+        }
+        command.add("-version");
+
+        try {
+            return new ProcessBuilder(command).redirectErrorStream(true).start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
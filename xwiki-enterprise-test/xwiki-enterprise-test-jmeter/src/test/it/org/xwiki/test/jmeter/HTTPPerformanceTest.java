@@ -20,43 +20,24 @@
 package org.xwiki.test.jmeter;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Locale;
-import java.util.regex.Pattern;
+import java.util.Map;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.jmeter.control.LoopController;
-import org.apache.jmeter.engine.StandardJMeterEngine;
 import org.apache.jmeter.protocol.http.sampler.HTTPSampler;
-import org.apache.jmeter.reporters.ResultCollector;
-import org.apache.jmeter.samplers.SampleSaveConfiguration;
-import org.apache.jmeter.testelement.TestPlan;
-import org.apache.jmeter.threads.ThreadGroup;
-import org.apache.jmeter.util.JMeterUtils;
-import org.apache.jorphan.collections.HashTree;
-import org.junit.BeforeClass;
 import org.junit.Test;
-import org.xwiki.model.internal.reference.DefaultStringEntityReferenceSerializer;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.LocalDocumentReference;
 import org.xwiki.model.reference.WikiReference;
-import org.xwiki.test.integration.XWikiExecutor;
+import org.xwiki.test.jmeter.framework.PerformanceReport;
+import org.xwiki.test.jmeter.framework.ResultSink;
+import org.xwiki.test.jmeter.framework.SampleStatistics;
+import org.xwiki.test.jmeter.framework.Scenario;
 import org.xwiki.xar.XarEntry;
-import org.xwiki.xar.XarException;
 import org.xwiki.xar.XarPackage;
 
 public class HTTPPerformanceTest
 {
-    private static final DefaultStringEntityReferenceSerializer SERIALIZER =
-        new DefaultStringEntityReferenceSerializer();
-
     protected static List<DocumentReference> readXarContents(String fileName, String patternFilter) throws Exception
     {
         Collection<XarEntry> entries = XarPackage.getEntries(new File(fileName));
@@ -72,122 +53,37 @@ protected static List<DocumentReference> readXarContents(String fileName, String
         return result;
     }
 
-    private static void addXarFiles(List<HTTPSampler> samplers) throws UnsupportedEncodingException, XarException,
-        IOException
-    {
-        String path = System.getProperty("localRepository") + "/" + System.getProperty("pathToXWikiXar");
-        String patternFilter = System.getProperty("documentsToTest");
-
-        Pattern pattern = patternFilter == null ? null : Pattern.compile(patternFilter);
-
-        for (XarEntry xarEntry : XarPackage.getEntries(new File(path))) {
-            if (pattern == null || pattern.matcher(SERIALIZER.serialize(xarEntry)).matches()) {
-                samplers.add(createSample(xarEntry, "get"));
-                samplers.add(createSample(xarEntry, "view"));
-            }
-        }
-    }
-
-    private static HTTPSampler createSample(LocalDocumentReference documentReference, String action)
-        throws UnsupportedEncodingException
-    {
-        return createSample(SERIALIZER.serialize(documentReference) + " (" + action + ")",
-            "/xwiki/bin/" + action + "/" + URLEncoder.encode(documentReference.getParent().getName(), "UTF8") + "/"
-                + URLEncoder.encode(documentReference.getName(), "UTF8"));
-    }
-
-    @BeforeClass
-    public static void before() throws IOException
-    {
-        FileUtils.writeByteArrayToFile(new File("target/jmeter/home/bin/httpclient.parameters"),
-            IOUtils.toByteArray(HTTPPerformanceTest.class.getResource("/jmeterbin/httpclient.parameters")));
-        FileUtils.writeByteArrayToFile(new File("target/jmeter/home/bin/jmeter.properties"),
-            IOUtils.toByteArray(HTTPPerformanceTest.class.getResource("/jmeterbin/jmeter.properties")));
-        FileUtils.writeByteArrayToFile(new File("target/jmeter/home/bin/saveservice.properties"),
-            IOUtils.toByteArray(HTTPPerformanceTest.class.getResource("/jmeterbin/saveservice.properties")));
-        FileUtils.writeByteArrayToFile(new File("target/jmeter/home/bin/upgrade.properties"),
-            IOUtils.toByteArray(HTTPPerformanceTest.class.getResource("/jmeterbin/upgrade.properties")));
-    }
-
-    private static HTTPSampler createSample(String name, String path)
-    {
-        HTTPSampler httpSampler = new HTTPSampler();
-
-        httpSampler.setDomain("localhost");
-        httpSampler.setPort(Integer.valueOf(XWikiExecutor.DEFAULT_PORT));
-        httpSampler.setMethod("GET");
-
-        httpSampler.setName(path);
-        httpSampler.setPath(path);
-
-        return httpSampler;
-    }
-
-    public void execute(List<HTTPSampler> samplers)
+    public void execute(List<HTTPSampler> samplers) throws Exception
     {
         execute(samplers, null, null);
     }
 
-    public void execute(List<HTTPSampler> samplers, String user, String password)
+    public void execute(List<HTTPSampler> samplers, String user, String password) throws Exception
     {
-        // jmeter.properties
-        JMeterUtils.loadJMeterProperties("target/jmeter/home/bin/saveservice.properties");
-        JMeterUtils.setLocale(Locale.ENGLISH);
-        JMeterUtils.setJMeterHome("target/jmeter/home");
-
-        // Result collector
-        ResultCollector resultCollector = new ResultCollector();
-        resultCollector.setFilename("target/jmeter/report.jtl");
-        SampleSaveConfiguration saveConfiguration = new SampleSaveConfiguration();
-        saveConfiguration.setAsXml(true);
-        saveConfiguration.setCode(true);
-        saveConfiguration.setLatency(true);
-        saveConfiguration.setTime(true);
-        saveConfiguration.setTimestamp(true);
-        resultCollector.setSaveConfig(saveConfiguration);
-
-        // Thread Group
-        ThreadGroup threadGroup = new ThreadGroup();
-        threadGroup.setName("xwiki");
-        threadGroup.setNumThreads(1);
-        threadGroup.setRampUp(1);
-        LoopController loopCtrl = new LoopController();
-        loopCtrl.setLoops(5);
-        loopCtrl.setFirst(true);
-        threadGroup.setSamplerController(loopCtrl);
-
-        HashTree threadGroupTree = new HashTree();
-        threadGroupTree.add(samplers);
-
-        // Test plan
-        TestPlan testPlan = new TestPlan("ping");
-
-        HashTree testPlanTree = new HashTree();
-        testPlanTree.add(threadGroup, threadGroupTree);
-        testPlanTree.add(resultCollector);
-
-        HashTree hashTree = new HashTree();
-        hashTree.add(testPlan, testPlanTree);
-
-        // Engine
-        StandardJMeterEngine jm = new StandardJMeterEngine("localhost");
-
-        jm.configure(hashTree);
-
-        jm.run();
+        File resultFile = new File("target/jmeter/report.csv");
+        new Scenario(samplers).setLoops(5).setResultFile(resultFile).run();
+
+        PerformanceReport report =
+            new PerformanceReport("http", "request", "samples", "errors", "mean (ms)", "p90 (ms)", "p99 (ms)");
+        for (Map.Entry<String, SampleStatistics> entry : ResultSink.read(resultFile).entrySet()) {
+            SampleStatistics statistics = entry.getValue();
+            report.addRow(entry.getKey(), statistics.getCount(), statistics.getErrors(), statistics.getMeanLatency(),
+                statistics.getPercentile(90), statistics.getPercentile(99));
+        }
+        report.write();
     }
 
     // Tests
 
     @Test
-    public void guest() throws FileNotFoundException, Exception
+    public void guest() throws Exception
     {
         List<HTTPSampler> samplers = new ArrayList<HTTPSampler>();
 
-        samplers.add(createSample("root", "/xwiki/"));
-        samplers.add(createSample("Main.WebHome (edit)", "/xwiki/bin/edit/Main/WebHome"));
+        samplers.add(Scenario.createSample("root", "/xwiki/"));
+        samplers.add(Scenario.createSample("Main.WebHome (edit)", "/xwiki/bin/edit/Main/WebHome"));
 
-        addXarFiles(samplers);
+        Scenario.addXarFiles(samplers);
 
         execute(samplers);
     }
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.jmeter.framework.AbstractPerformanceTest;
+import org.xwiki.test.jmeter.framework.PerformanceReport;
+
+/**
+ * Measures how the history viewer, the diff between distant revisions, rollback and version deletion scale with the
+ * number of versions of a document.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>historyDepths (optional): comma separated numbers of versions of the fixture documents</li>
+ * <li>historyContentSize (optional): size in characters of the content of the fixture documents</li>
+ * <li>historyRepetitions (optional): how many times each operation is measured</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class HistoryPerformanceTest extends AbstractPerformanceTest
+{
+    private static final String SPACE = "HistoryPerformanceTest";
+
+    /** Versions are created by batches to keep each request short. */
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Saves a new version of the target document, changing one line of its content each time, as many times as
+     * requested.
+     */
+    private static final String HISTORY_SCRIPT =
+          "def target = xwiki.getDocument(request.getParameter('target'))\n"
+        + "if (request.getParameter('reset') && !target.isNew()) {\n"
+        + "  target.delete()\n"
+        + "  target = xwiki.getDocument(request.getParameter('target'))\n"
+        + "}\n"
+        + "int count = request.getParameter('count') as int\n"
+        + "int size = request.getParameter('size') as int\n"
+        + "def random = new Random()\n"
+        + "def lines = target.content ? target.content.readLines() : []\n"
+        + "while (lines.size() * 80 < size) {\n"
+        + "  lines << (1..79).collect { ('a'..'z')[random.nextInt(26)] }.join()\n"
+        + "}\n"
+        + "for (i in 1..count) {\n"
+        + "  lines[random.nextInt(lines.size())] = 'Changed by revision ' + i + ' of batch ' + random.nextLong()\n"
+        + "  target.setContent(lines.join('\\n'))\n"
+        + "  target.saveAsAuthor('Revision ' + i, false)\n"
+        + "}\n"
+        + "print(target.version)";
+
+    private final int[] depths = getIntegers("historyDepths", "1000,5000,10000");
+
+    private final int contentSize = Integer.getInteger("historyContentSize", 100000);
+
+    private final int repetitions = Integer.getInteger("historyRepetitions", 3);
+
+    @Test
+    public void history() throws Exception
+    {
+        PerformanceReport report =
+            new PerformanceReport("history", "versions", "operation", "latency (ms)", "allocated (MB)");
+
+        for (final int depth : this.depths) {
+            final String page = "Document" + depth;
+            createHistory(page, depth);
+
+            addRow(report, depth, "history", measureGet(page, "viewer=history"));
+            addRow(report, depth, "diff first/last", measureGet(page, "viewer=changes&rev1=1.1&rev2=" + depth + ".1"));
+            addRow(report, depth, "diff last/previous",
+                measureGet(page, "viewer=changes&rev1=" + (depth - 1) + ".1&rev2=" + depth + ".1"));
+
+            // Both operations modify the history, use a different revision at each repetition.
+            final int[] revision = new int[] {depth / 2};
+            Measurement rollback = measure(this.repetitions, new Operation()
+            {
+                @Override
+                public void run() throws Exception
+                {
+                    doPost(getURL("rollback", SPACE, page, "confirm=1&rev=" + revision[0]++ + ".1"), null);
+                }
+            });
+            addRow(report, depth, "rollback", rollback);
+
+            Measurement deleteVersion = measure(this.repetitions, new Operation()
+            {
+                @Override
+                public void run() throws Exception
+                {
+                    String version = revision[0]++ + ".1";
+                    doPost(getURL("deleteversions", SPACE, page, "confirm=1&rev1=" + version + "&rev2=" + version),
+                        null);
+                }
+            });
+            addRow(report, depth, "delete version", deleteVersion);
+        }
+
+        report.write();
+    }
+
+    private Measurement measureGet(final String page, final String query) throws Exception
+    {
+        return measure(this.repetitions, new Operation()
+        {
+            @Override
+            public void run() throws Exception
+            {
+                execute(new GetMethod(getURL("view", SPACE, page, query)));
+            }
+        });
+    }
+
+    private void addRow(PerformanceReport report, int depth, String operation, Measurement measurement)
+    {
+        report.addRow(depth, operation, measurement.getLatency(), measurement.getAllocatedMB());
+    }
+
+    /**
+     * Recreate the fixture document with the given number of versions.
+     *
+     * @param page the name of the document
+     * @param depth the number of versions to create
+     */
+    private void createHistory(String page, int depth) throws Exception
+    {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("target", SPACE + '.' + page);
+        parameters.put("size", String.valueOf(this.contentSize));
+        parameters.put("reset", "true");
+        String version = null;
+        for (int created = 0; created < depth; created += BATCH_SIZE) {
+            parameters.put("count", String.valueOf(Math.min(BATCH_SIZE, depth - created)));
+            version = executeGroovy(HISTORY_SCRIPT, parameters);
+            parameters.remove("reset");
+        }
+        Assert.assertEquals("The history of " + page + " was not fully created", depth + ".1", version);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.httpclient.Cookie;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.junit.Test;
+import org.xwiki.test.jmeter.framework.AbstractPerformanceTest;
+import org.xwiki.test.jmeter.framework.PerformanceReport;
+import org.xwiki.test.jmeter.framework.ServerMonitor;
+
+/**
+ * Logs in an increasing number of distinct users, each one viewing a few pages and leaving its session alive, and
+ * measures how much heap is retained per session once the garbage has been collected. The classes which grew the most
+ * are reported too, to know what to trim when idle sessions (typically created by an SSO front) fill the heap.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>sessionCounts (optional): comma separated, positive, numbers of sessions to measure, in any order</li>
+ * <li>sessionPages (optional): comma separated references of the pages each user views, besides its profile</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class SessionFootprintTest extends AbstractPerformanceTest
+{
+    private static final String PASSWORD = "password";
+
+    private static final int TOP_CLASSES = 15;
+
+    private static final String CREATE_USERS_SCRIPT = "def start = request.start as int\n"
+        + "def count = request.count as int\n"
+        + "for (i in start..<start + count) {\n"
+        + "  def name = 'SessionUser' + i\n"
+        + "  if (!xwiki.exists('XWiki.' + name)) {\n"
+        + "    xwiki.getXWiki().createUser(name, ['password': request.password, 'active': '1'], "
+        + "xcontext.getContext())\n"
+        + "  }\n"
+        + "}\n"
+        + "print count";
+
+    private final int[] counts = getIncreasingCounts("sessionCounts", "100,500,1000");
+
+    private final String[] pages =
+        System.getProperty("sessionPages", "Main.WebHome,Sandbox.WebHome").split("\\s*,\\s*");
+
+    @Test
+    public void sessions() throws Exception
+    {
+        // Start from a fresh JVM so that no session is left from the other tests.
+        restartXWiki("");
+
+        createUsers(this.counts[this.counts.length - 1]);
+
+        // The JIT, the caches and the pools fill during the first sessions, don't count them.
+        openSession(0);
+        openSession(1);
+
+        ServerMonitor monitor = getMonitor();
+        monitor.gc();
+        long baselineHeap = monitor.gc();
+        Map<String, long[]> baselineHistogram = monitor.getClassHistogram();
+
+        PerformanceReport report = new PerformanceReport("session-footprint", "sessions", "retained heap (MB)",
+            "bytes per session", "marginal bytes per session");
+        report.addChart(0, 1);
+
+        int sessions = 0;
+        long previousHeap = baselineHeap;
+        for (int count : this.counts) {
+            int previousSessions = sessions;
+            for (; sessions < count; sessions++) {
+                openSession(sessions + 2);
+            }
+
+            monitor.gc();
+            long heap = monitor.gc();
+            report.addRow(sessions, (heap - baselineHeap) / ServerMonitor.MB, (heap - baselineHeap) / sessions,
+                (heap - previousHeap) / (sessions - previousSessions));
+            previousHeap = heap;
+        }
+
+        report.write();
+        getRetainedTypes(baselineHistogram, monitor.getClassHistogram(), sessions).write();
+    }
+
+    private void createUsers(int count) throws IOException
+    {
+        // Leave room for the warm up users.
+        final int total = count + 2;
+        final int batch = 100;
+        for (int start = 0; start < total; start += batch) {
+            Map<String, String> parameters = new HashMap<String, String>();
+            parameters.put("start", String.valueOf(start));
+            parameters.put("count", String.valueOf(Math.min(batch, total - start)));
+            parameters.put("password", PASSWORD);
+            executeGroovy(CREATE_USERS_SCRIPT, parameters);
+        }
+    }
+
+    /**
+     * Log in a user with the login form, view its profile and the configured pages, then forget the cookies. The
+     * session stays alive on the server until it times out.
+     *
+     * @param index the index of the user
+     */
+    private void openSession(int index) throws IOException
+    {
+        // A client per user, for the cookies, sharing the connections of the main client.
+        HttpClient client = new HttpClient(getClient().getHttpConnectionManager());
+        String user = "SessionUser" + index;
+        String prefix = "http://localhost:" + getExecutor().getPort() + "/xwiki/bin/";
+
+        PostMethod login = new PostMethod(prefix + "loginsubmit/XWiki/XWikiLogin");
+        login.addParameter("j_username", user);
+        login.addParameter("j_password", PASSWORD);
+        execute(client, login);
+        if (!isLoggedIn(client)) {
+            throw new IOException("Failed to log in [" + user + "]");
+        }
+
+        execute(client, new GetMethod(prefix + "view/XWiki/" + user));
+        for (String page : this.pages) {
+            int separator = page.lastIndexOf('.');
+            execute(client,
+                new GetMethod(prefix + "view/" + page.substring(0, separator) + '/' + page.substring(separator + 1)));
+        }
+    }
+
+    private boolean isLoggedIn(HttpClient client)
+    {
+        for (Cookie cookie : client.getState().getCookies()) {
+            if ("username".equals(cookie.getName())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private PerformanceReport getRetainedTypes(Map<String, long[]> before, Map<String, long[]> after,
+        int sessions)
+    {
+        final Map<String, long[]> growth = new HashMap<String, long[]>();
+        for (Map.Entry<String, long[]> entry : after.entrySet()) {
+            long[] previous = before.containsKey(entry.getKey()) ? before.get(entry.getKey()) : new long[2];
+            growth.put(entry.getKey(),
+                new long[] {entry.getValue()[0] - previous[0], entry.getValue()[1] - previous[1]});
+        }
+
+        List<String> classes = new ArrayList<String>(growth.keySet());
+        Collections.sort(classes, new Comparator<String>()
+        {
+            @Override
+            public int compare(String class1, String class2)
+            {
+                return Long.compare(growth.get(class2)[1], growth.get(class1)[1]);
+            }
+        });
+
+        PerformanceReport report = new PerformanceReport("session-retained-types", "class", "instances per session",
+            "bytes per session", "retained (MB)");
+        for (String className : classes.subList(0, Math.min(TOP_CLASSES, classes.size()))) {
+            long[] classGrowth = growth.get(className);
+            report.addRow(className, (double) classGrowth[0] / sessions, classGrowth[1] / sessions,
+                classGrowth[1] / ServerMonitor.MB);
+        }
+        report.addChart(0, 2);
+
+        return report;
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter.framework;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.junit.Assume;
+import org.junit.Before;
+import org.xwiki.test.integration.XWikiExecutor;
+
+/**
+ * Base class for the performance tests which drive XWiki directly over HTTP (rather than through JMeter) because they
+ * need to correlate each request with what happened inside the server JVM, read through {@link ServerMonitor}. They
+ * only run when the "performanceBenchmark" System Property is true, since they take much longer than the rest of the
+ * build (thousands of saves, several restarts of XWiki).
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>performanceBenchmark: set to true to run the performance tests</li>
+ * <li>xwikiOpts (optional): JVM options used to start XWiki, the JMX options are appended</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public abstract class AbstractPerformanceTest
+{
+    /** The JVM options XWiki is started with when nothing else is asked. */
+    public static final String DEFAULT_XWIKI_OPTS = System.getProperty("xwikiOpts", "-Xmx1024m");
+
+    private static final UsernamePasswordCredentials ADMIN_CREDENTIALS =
+        new UsernamePasswordCredentials("Admin", "admin");
+
+    private static final Pattern SECRET_TOKEN_PATTERN =
+        Pattern.compile("<input[^>]+form_token[^>]+value=('|\")([^'\"]+)");
+
+    /** The start of the message displayed in place of a macro which failed, with status 200. */
+    private static final String MACRO_ERROR = "Failed to execute the [";
+
+    private static XWikiExecutor executor;
+
+    private static ServerMonitor monitor;
+
+    private static HttpClient client;
+
+    private static String secretToken;
+
+    /**
+     * An operation to measure.
+     */
+    public interface Operation
+    {
+        /**
+         * Execute the operation once.
+         *
+         * @throws Exception on errors
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * The median figures of an operation repeated several times.
+     */
+    public static class Measurement
+    {
+        private final double latency;
+
+        private final double allocated;
+
+        /**
+         * @param latency the median latency, in milliseconds
+         * @param allocated the median number of bytes allocated by the server
+         */
+        public Measurement(double latency, double allocated)
+        {
+            this.latency = latency;
+            this.allocated = allocated;
+        }
+
+        /**
+         * @return the median latency, in milliseconds
+         */
+        public double getLatency()
+        {
+            return this.latency;
+        }
+
+        /**
+         * @return the median number of megabytes allocated by the server
+         */
+        public double getAllocatedMB()
+        {
+            return this.allocated / ServerMonitor.MB;
+        }
+    }
+
+    @Before
+    public void assumeBenchmark()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("performanceBenchmark"));
+    }
+
+    /**
+     * Used so that AllTests can set the executor before it is started. Makes XWiki start with the JMX agent enabled.
+     *
+     * @param executor the executor which is about to be started
+     */
+    public static void setExecutor(XWikiExecutor executor)
+    {
+        AbstractPerformanceTest.executor = executor;
+        setXWikiOpts("");
+    }
+
+    private static void setXWikiOpts(String options)
+    {
+        executor.setXWikiOpts(DEFAULT_XWIKI_OPTS + ' ' + options + ' '
+            + ServerMonitor.getJMXOptions(executor.getRMIPort()));
+    }
+
+    /**
+     * Restart XWiki with additional JVM options. Use an empty string to go back to the default options.
+     *
+     * @param options the JVM options to add to the default ones
+     * @throws Exception when XWiki fails to stop or start
+     */
+    protected static synchronized void restartXWiki(String options) throws Exception
+    {
+        if (monitor != null) {
+            monitor.close();
+            monitor = null;
+        }
+
+        executor.stop();
+        setXWikiOpts(options);
+        executor.start();
+
+        // The anti-CSRF tokens are not persisted.
+        secretToken = null;
+    }
+
+    /**
+     * @return the executor running XWiki
+     */
+    protected static XWikiExecutor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * @return the monitor of the XWiki JVM, connected on first call
+     * @throws IOException when the JMX connection fails
+     */
+    protected static synchronized ServerMonitor getMonitor() throws IOException
+    {
+        if (monitor == null) {
+            monitor = new ServerMonitor(executor.getRMIPort());
+        }
+
+        return monitor;
+    }
+
+    /**
+     * @return the HTTP client shared by all performance tests, authenticated as Admin
+     */
+    protected static synchronized HttpClient getClient()
+    {
+        if (client == null) {
+            client = new HttpClient(new MultiThreadedHttpConnectionManager());
+            client.getState().setCredentials(AuthScope.ANY, ADMIN_CREDENTIALS);
+            client.getParams().setAuthenticationPreemptive(true);
+        }
+
+        return client;
+    }
+
+    /**
+     * @param action the action
+     * @param space the space name
+     * @param page the page name
+     * @param query the query string, may be null
+     * @return the absolute URL
+     */
+    protected static String getURL(String action, String space, String page, String query)
+    {
+        StringBuilder url = new StringBuilder("http://localhost:");
+        url.append(executor.getPort());
+        url.append("/xwiki/bin/");
+        url.append(action).append('/').append(escapeURL(space)).append('/').append(escapeURL(page));
+        url.append("?basicauth=1");
+        if (!"view".equals(action) && !"edit".equals(action)) {
+            url.append("&form_token=").append(getSecretToken());
+        }
+        if (query != null && !query.isEmpty()) {
+            url.append('&').append(query);
+        }
+
+        return url.toString();
+    }
+
+    /**
+     * Do a POST request as Admin and read the whole response.
+     *
+     * @param url the absolute URL
+     * @param parameters the POST parameters, may be null
+     * @return the response body
+     * @throws IOException on connection errors
+     */
+    protected static byte[] doPost(String url, Map<String, String> parameters) throws IOException
+    {
+        PostMethod method = new PostMethod(url);
+        if (parameters != null) {
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                method.addParameter(parameter.getKey(), parameter.getValue());
+            }
+        }
+
+        return execute(method);
+    }
+
+    /**
+     * Execute a request with the shared client and read the whole response.
+     *
+     * @param method the request
+     * @return the response body
+     * @throws IOException on connection errors or when the server answers with an error
+     */
+    protected static byte[] execute(HttpMethod method) throws IOException
+    {
+        return execute(getClient(), method);
+    }
+
+    /**
+     * Execute a request and read the whole response.
+     *
+     * @param client the client to use, holding the cookies and credentials
+     * @param method the request
+     * @return the response body
+     * @throws IOException on connection errors or when the server answers with an error
+     */
+    protected static byte[] execute(HttpClient client, HttpMethod method) throws IOException
+    {
+        try {
+            int status = client.executeMethod(method);
+            byte[] body = method.getResponseBody();
+            if (status >= 400) {
+                throw new IOException("Request [" + method.getURI() + "] failed with status " + status);
+            }
+
+            return body;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Execute a Groovy script with programming rights, using the preview action.
+     *
+     * @param script the script, without the groovy macro markup
+     * @param parameters additional request parameters the script can read, may be null
+     * @return the plain text output of the script
+     * @throws IOException on connection errors or when the script fails
+     */
+    protected static String executeGroovy(String script, Map<String, String> parameters) throws IOException
+    {
+        Map<String, String> postParameters = new HashMap<String, String>();
+        if (parameters != null) {
+            postParameters.putAll(parameters);
+        }
+        postParameters.put("content", "{{groovy}}\n" + script + "\n{{/groovy}}");
+
+        String output = new String(doPost(getURL("preview", "PerformanceTest", "Groovy",
+            "xpage=plain&outputSyntax=plain"), postParameters), "UTF-8").trim();
+        // A script exception is rendered in place of the macro, not reported with the HTTP status.
+        if (output.contains(MACRO_ERROR)) {
+            throw new IOException("The Groovy script failed: " + output);
+        }
+
+        return output;
+    }
+
+    /**
+     * Repeat an operation and measure the median latency and server allocation.
+     *
+     * @param repetitions how many times the operation is executed
+     * @param operation the operation to measure
+     * @return the median figures
+     * @throws Exception when the operation fails
+     */
+    protected static Measurement measure(int repetitions, Operation operation) throws Exception
+    {
+        double[] latencies = new double[repetitions];
+        double[] allocations = new double[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            long allocatedBefore = getMonitor().getAllocatedBytes();
+            long start = System.nanoTime();
+            operation.run();
+            latencies[i] = (System.nanoTime() - start) / 1000000D;
+            allocations[i] = getMonitor().getAllocatedBytes() - allocatedBefore;
+        }
+
+        return new Measurement(median(latencies), median(allocations));
+    }
+
+    /**
+     * @param values the values, sorted in place
+     * @return the median value
+     */
+    protected static double median(double[] values)
+    {
+        Arrays.sort(values);
+
+        return values[values.length / 2];
+    }
+
+    /**
+     * Read a comma separated list of integers from a system property.
+     *
+     * @param name the name of the system property
+     * @param defaultValue the value used when the property is not set
+     * @return the integers
+     */
+    protected static int[] getIntegers(String name, String defaultValue)
+    {
+        String[] values = System.getProperty(name, defaultValue).split("\\s*,\\s*");
+        int[] integers = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            integers[i] = Integer.parseInt(values[i].trim());
+        }
+
+        return integers;
+    }
+
+    /**
+     * Read a comma separated list of counts from a system property, e.g. numbers of sessions measured one after the
+     * other. The counts are sorted and the duplicates dropped, so each one adds to the previous.
+     *
+     * @param name the name of the system property
+     * @param defaultValue the value used when the property is not set
+     * @return the counts, in increasing order
+     * @throws IllegalArgumentException if a count is not positive
+     */
+    protected static int[] getIncreasingCounts(String name, String defaultValue)
+    {
+        SortedSet<Integer> sorted = new TreeSet<Integer>();
+        for (int count : getIntegers(name, defaultValue)) {
+            if (count <= 0) {
+                throw new IllegalArgumentException("The counts of [" + name + "] must be positive, got " + count);
+            }
+            sorted.add(count);
+        }
+
+        int[] counts = new int[sorted.size()];
+        int i = 0;
+        for (int count : sorted) {
+            counts[i++] = count;
+        }
+
+        return counts;
+    }
+
+    /**
+     * Get the secret token used for CSRF protection. Caches the token on the first call.
+     *
+     * @return anti-CSRF secret token
+     */
+    private static synchronized String getSecretToken()
+    {
+        if (secretToken == null) {
+            try {
+                String body = new String(doPost(getURL("edit", "Main", "WebHome", "editor=wiki"), null), "UTF-8");
+                Matcher matcher = SECRET_TOKEN_PATTERN.matcher(body);
+                secretToken = matcher.find() ? matcher.group(2) : "";
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to get the anti-CSRF secret token", e);
+            }
+        }
+
+        return secretToken;
+    }
+
+    private static String escapeURL(String s)
+    {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // should not happen
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A table of performance figures, written both as CSV (to be charted) and as an aligned text table (to be read) in
+ * {@code target/jmeter/}.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class PerformanceReport
+{
+    private static final String REPORT_DIRECTORY = "target/jmeter";
+
+    private static final int CHART_WIDTH = 60;
+
+    private final String name;
+
+    private final List<String> columns;
+
+    private final List<List<String>> rows = new ArrayList<List<String>>();
+
+    private final List<int[]> charts = new ArrayList<int[]>();
+
+    private final List<String> notes = new ArrayList<String>();
+
+    /**
+     * @param name the name of the report, used as file name
+     * @param columns the column titles
+     */
+    public PerformanceReport(String name, String... columns)
+    {
+        this.name = name;
+        this.columns = Arrays.asList(columns);
+    }
+
+    /**
+     * Add a row to the table. Floating point values are rounded to two decimals.
+     *
+     * @param values the values of the row, one per column
+     */
+    public void addRow(Object... values)
+    {
+        List<String> row = new ArrayList<String>(values.length);
+        for (Object value : values) {
+            if (value instanceof Double || value instanceof Float) {
+                row.add(String.format(Locale.ROOT, "%.2f", ((Number) value).doubleValue()));
+            } else {
+                row.add(String.valueOf(value));
+            }
+        }
+        this.rows.add(row);
+    }
+
+    /**
+     * Add a horizontal bar chart to the text report.
+     *
+     * @param labelColumn the index of the column labelling the bars
+     * @param valueColumn the index of the numeric column giving the length of the bars
+     */
+    public void addChart(int labelColumn, int valueColumn)
+    {
+        this.charts.add(new int[] {labelColumn, valueColumn});
+    }
+
+    /**
+     * Add a note below the table, e.g. to tell that a measure was skipped or done in degraded conditions.
+     *
+     * @param note the text of the note
+     */
+    public void addNote(String note)
+    {
+        this.notes.add(note);
+    }
+
+    /**
+     * @return the rows added so far
+     */
+    public List<List<String>> getRows()
+    {
+        return this.rows;
+    }
+
+    /**
+     * Write the report files and print the table on the console.
+     *
+     * @throws IOException when the report files cannot be written
+     */
+    public void write() throws IOException
+    {
+        StringBuilder csv = new StringBuilder();
+        csv.append(StringUtils.join(this.columns, ',')).append('\n');
+        for (List<String> row : this.rows) {
+            csv.append(StringUtils.join(row, ',')).append('\n');
+        }
+        FileUtils.writeStringToFile(new File(REPORT_DIRECTORY, this.name + ".csv"), csv.toString(), "UTF-8");
+
+        String table = toString();
+        FileUtils.writeStringToFile(new File(REPORT_DIRECTORY, this.name + ".txt"), table, "UTF-8");
+        System.out.println(table);
+    }
+
+    @Override
+    public String toString()
+    {
+        int[] widths = new int[this.columns.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = this.columns.get(i).length();
+            for (List<String> row : this.rows) {
+                widths[i] = Math.max(widths[i], row.get(i).length());
+            }
+        }
+
+        StringBuilder table = new StringBuilder();
+        table.append(this.name).append('\n');
+        appendLine(table, this.columns, widths);
+        for (int i = 0; i < widths.length; i++) {
+            table.append(StringUtils.repeat('-', widths[i])).append("  ");
+        }
+        table.append('\n');
+        for (List<String> row : this.rows) {
+            appendLine(table, row, widths);
+        }
+        for (int[] chart : this.charts) {
+            appendChart(table, chart[0], chart[1]);
+        }
+        if (!this.notes.isEmpty()) {
+            table.append('\n');
+            for (String note : this.notes) {
+                table.append("Note: ").append(note).append('\n');
+            }
+        }
+
+        return table.toString();
+    }
+
+    private void appendChart(StringBuilder table, int labelColumn, int valueColumn)
+    {
+        double max = 0;
+        int labelWidth = 0;
+        for (List<String> row : this.rows) {
+            max = Math.max(max, Double.parseDouble(row.get(valueColumn)));
+            labelWidth = Math.max(labelWidth, row.get(labelColumn).length());
+        }
+
+        table.append('\n').append(this.columns.get(valueColumn)).append(" by ").append(this.columns.get(labelColumn));
+        table.append('\n');
+        for (List<String> row : this.rows) {
+            double value = Double.parseDouble(row.get(valueColumn));
+            table.append(StringUtils.leftPad(row.get(labelColumn), labelWidth)).append(" | ");
+            table.append(StringUtils.repeat('#', max > 0 ? (int) Math.round(CHART_WIDTH * value / max) : 0));
+            table.append(' ').append(row.get(valueColumn)).append('\n');
+        }
+    }
+
+    private void appendLine(StringBuilder table, List<String> cells, int[] widths)
+    {
+        for (int i = 0; i < widths.length; i++) {
+            table.append(StringUtils.leftPad(cells.get(i), widths[i])).append("  ");
+        }
+        table.append('\n');
+    }
+}
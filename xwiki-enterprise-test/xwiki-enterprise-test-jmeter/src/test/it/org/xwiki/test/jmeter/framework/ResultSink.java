@@ -0,0 +1,223 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter.framework;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jmeter.engine.util.NoThreadClone;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleListener;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.AbstractTestElement;
+import org.apache.jmeter.testelement.TestStateListener;
+
+/**
+ * Saves every sample of a JMeter run as one CSV line, much cheaper to produce and to read back than the XML result
+ * files, so that long runs stay possible.
+ * <p>
+ * The JMeter threads only queue the formatted lines, a background thread writes them through a buffer. The queue is
+ * bounded: if the disk cannot follow, the JMeter threads wait rather than filling the memory.
+ * <p>
+ * The columns are: start timestamp (ms), elapsed time (ms), latency (ms), response code, success, label. The label is
+ * last so that it can contain commas.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class ResultSink extends AbstractTestElement implements SampleListener, TestStateListener, NoThreadClone
+{
+    /** The first line of the files. */
+    public static final String HEADER = "timeStamp,elapsed,latency,responseCode,success,label";
+
+    private static final int QUEUE_SIZE = 10000;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Queued by {@link #testEnded()} to stop the writer thread. */
+    private static final String END = new String();
+
+    private final File file;
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+
+    private Thread writerThread;
+
+    private IOException writeError;
+
+    /**
+     * @param file the file where the samples are written, overwritten if it exists
+     */
+    public ResultSink(File file)
+    {
+        this.file = file;
+    }
+
+    @Override
+    public void testStarted()
+    {
+        this.file.getAbsoluteFile().getParentFile().mkdirs();
+        this.writerThread = new Thread("ResultSink " + this.file.getName())
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        };
+        this.writerThread.start();
+    }
+
+    @Override
+    public void testStarted(String host)
+    {
+        testStarted();
+    }
+
+    @Override
+    public void sampleOccurred(SampleEvent event)
+    {
+        SampleResult result = event.getResult();
+        StringBuilder line = new StringBuilder(128);
+        line.append(result.getStartTime()).append(',');
+        line.append(result.getTime()).append(',');
+        line.append(result.getLatency()).append(',');
+        line.append(result.getResponseCode()).append(',');
+        line.append(result.isSuccessful()).append(',');
+        line.append(result.getSampleLabel().replace('\n', ' ').replace('\r', ' ')).append('\n');
+
+        try {
+            this.queue.put(line.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void sampleStarted(SampleEvent event)
+    {
+        // Only finished samples are written.
+    }
+
+    @Override
+    public void sampleStopped(SampleEvent event)
+    {
+        // Only finished samples are written.
+    }
+
+    @Override
+    public void testEnded()
+    {
+        try {
+            this.queue.put(END);
+            this.writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (this.writeError != null) {
+            throw new RuntimeException("Failed to write the samples to [" + this.file + "]", this.writeError);
+        }
+    }
+
+    @Override
+    public void testEnded(String host)
+    {
+        testEnded();
+    }
+
+    private void write()
+    {
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file), "UTF-8"), BUFFER_SIZE);
+            writer.write(HEADER);
+            writer.write('\n');
+            for (String line = this.queue.take(); line != END; line = this.queue.take()) {
+                writer.write(line);
+            }
+        } catch (IOException e) {
+            this.writeError = e;
+            // Keep emptying the queue so that the JMeter threads are not blocked.
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    private void drain()
+    {
+        try {
+            while (this.queue.take() != END) {
+                // Dropped.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read a file written by a sink line by line, aggregating the samples per label.
+     *
+     * @param file the file to read
+     * @return the statistics of each label, in the order in which the labels first appear
+     * @throws IOException when the file cannot be read
+     */
+    public static Map<String, SampleStatistics> read(File file) throws IOException
+    {
+        Map<String, SampleStatistics> statistics = new LinkedHashMap<String, SampleStatistics>();
+
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), BUFFER_SIZE);
+        try {
+            // Skip the header.
+            reader.readLine();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] columns = line.split(",", 6);
+                SampleStatistics labelStatistics = statistics.get(columns[5]);
+                if (labelStatistics == null) {
+                    labelStatistics = new SampleStatistics();
+                    statistics.put(columns[5], labelStatistics);
+                }
+                long start = Long.parseLong(columns[0]);
+                long elapsed = Long.parseLong(columns[1]);
+                labelStatistics.add(start, start + elapsed, elapsed, Boolean.parseBoolean(columns[4]));
+            }
+        } finally {
+            reader.close();
+        }
+
+        return statistics;
+    }
+}
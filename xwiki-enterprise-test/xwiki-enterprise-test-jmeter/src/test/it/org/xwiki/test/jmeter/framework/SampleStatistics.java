@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter.framework;
+
+import java.util.Arrays;
+
+import org.apache.jmeter.engine.util.NoThreadClone;
+import org.apache.jmeter.samplers.SampleEvent;
+import org.apache.jmeter.samplers.SampleListener;
+import org.apache.jmeter.testelement.AbstractTestElement;
+
+/**
+ * Aggregates the samples of a JMeter run in constant memory: latencies are counted in one millisecond buckets, so
+ * percentiles are exact up to {@link #MAX_LATENCY} milliseconds. The buckets grow with the highest latency seen, so
+ * that many instances (one per label) can be kept.
+ * <p>
+ * Added at the test plan level, the same instance is shared by all the JMeter threads.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class SampleStatistics extends AbstractTestElement implements SampleListener, NoThreadClone
+{
+    /** Latencies above this number of milliseconds are all counted in the last bucket. */
+    public static final int MAX_LATENCY = 60000;
+
+    private static final int INITIAL_BUCKETS = 1024;
+
+    private long[] histogram = new long[INITIAL_BUCKETS];
+
+    private long count;
+
+    private long errors;
+
+    private long totalLatency;
+
+    private long firstStart = Long.MAX_VALUE;
+
+    private long lastEnd;
+
+    @Override
+    public void sampleOccurred(SampleEvent event)
+    {
+        add(event.getResult().getStartTime(), event.getResult().getEndTime(), event.getResult().getTime(),
+            event.getResult().isSuccessful());
+    }
+
+    /**
+     * Count a sample.
+     *
+     * @param start when the sample started, in milliseconds since the epoch
+     * @param end when the sample ended, in milliseconds since the epoch
+     * @param latency the elapsed time of the sample, in milliseconds
+     * @param success whether the sample was successful
+     */
+    public synchronized void add(long start, long end, long latency, boolean success)
+    {
+        this.count++;
+        if (!success) {
+            this.errors++;
+        }
+        this.totalLatency += latency;
+        int bucket = (int) Math.max(0, Math.min(latency, MAX_LATENCY));
+        if (bucket >= this.histogram.length) {
+            this.histogram = Arrays.copyOf(this.histogram, Math.min(Math.max(bucket + 1, 2 * this.histogram.length),
+                MAX_LATENCY + 1));
+        }
+        this.histogram[bucket]++;
+        this.firstStart = Math.min(this.firstStart, start);
+        this.lastEnd = Math.max(this.lastEnd, end);
+    }
+
+    @Override
+    public void sampleStarted(SampleEvent event)
+    {
+        // Only finished samples are counted.
+    }
+
+    @Override
+    public void sampleStopped(SampleEvent event)
+    {
+        // Only finished samples are counted.
+    }
+
+    /**
+     * @return the number of samples
+     */
+    public synchronized long getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return the number of failed samples
+     */
+    public synchronized long getErrors()
+    {
+        return this.errors;
+    }
+
+    /**
+     * @return the number of samples per second between the start of the first one and the end of the last one
+     */
+    public synchronized double getThroughput()
+    {
+        long duration = this.lastEnd - this.firstStart;
+
+        return duration > 0 ? this.count * 1000D / duration : 0;
+    }
+
+    /**
+     * @return the mean latency, in milliseconds
+     */
+    public synchronized double getMeanLatency()
+    {
+        return this.count > 0 ? (double) this.totalLatency / this.count : 0;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency below which the given percentage of samples fall, in milliseconds
+     */
+    public synchronized long getPercentile(double percentile)
+    {
+        long rank = (long) Math.ceil(this.count * percentile / 100D);
+        long seen = 0;
+        for (int latency = 0; latency < this.histogram.length; latency++) {
+            seen += this.histogram[latency];
+            if (seen >= rank && seen > 0) {
+                return latency;
+            }
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.jmeter.control.LoopController;
+import org.apache.jmeter.engine.StandardJMeterEngine;
+import org.apache.jmeter.protocol.http.sampler.HTTPSampler;
+import org.apache.jmeter.testelement.TestPlan;
+import org.apache.jmeter.threads.ThreadGroup;
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.collections.HashTree;
+import org.xwiki.model.internal.reference.DefaultStringEntityReferenceSerializer;
+import org.xwiki.model.reference.LocalDocumentReference;
+import org.xwiki.test.integration.XWikiExecutor;
+import org.xwiki.xar.XarEntry;
+import org.xwiki.xar.XarException;
+import org.xwiki.xar.XarPackage;
+
+/**
+ * A JMeter test plan requesting a list of samplers in a loop from a group of threads, optionally saving every sample
+ * with a {@link ResultSink}, and always aggregating them in {@link SampleStatistics}.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class Scenario
+{
+    private static final DefaultStringEntityReferenceSerializer SERIALIZER =
+        new DefaultStringEntityReferenceSerializer();
+
+    private static final String[] JMETER_BIN_FILES =
+        new String[] {"httpclient.parameters", "jmeter.properties", "saveservice.properties", "upgrade.properties"};
+
+    private static boolean jmeterHomeReady;
+
+    private final List<HTTPSampler> samplers;
+
+    private int threads = 1;
+
+    private int loops = 1;
+
+    private File resultFile;
+
+    /**
+     * @param samplers the requests of the scenario
+     */
+    public Scenario(List<HTTPSampler> samplers)
+    {
+        this.samplers = samplers;
+    }
+
+    /**
+     * @param threads the number of concurrent JMeter threads
+     * @return this scenario
+     */
+    public Scenario setThreads(int threads)
+    {
+        this.threads = threads;
+
+        return this;
+    }
+
+    /**
+     * @param loops how many times each thread goes through all the samplers
+     * @return this scenario
+     */
+    public Scenario setLoops(int loops)
+    {
+        this.loops = loops;
+
+        return this;
+    }
+
+    /**
+     * @param resultFile the file where every sample is saved by a {@link ResultSink}, nothing is saved if null
+     * @return this scenario
+     */
+    public Scenario setResultFile(File resultFile)
+    {
+        this.resultFile = resultFile;
+
+        return this;
+    }
+
+    /**
+     * Run the scenario and wait until all the threads are done.
+     *
+     * @return the aggregated samples
+     * @throws IOException when the JMeter home cannot be prepared
+     */
+    public SampleStatistics run() throws IOException
+    {
+        prepareJMeterHome();
+
+        // jmeter.properties
+        JMeterUtils.loadJMeterProperties("target/jmeter/home/bin/saveservice.properties");
+        JMeterUtils.setLocale(Locale.ENGLISH);
+        JMeterUtils.setJMeterHome("target/jmeter/home");
+
+        // Thread Group
+        ThreadGroup threadGroup = new ThreadGroup();
+        threadGroup.setName("xwiki");
+        threadGroup.setNumThreads(this.threads);
+        threadGroup.setRampUp(1);
+        LoopController loopCtrl = new LoopController();
+        loopCtrl.setLoops(this.loops);
+        loopCtrl.setFirst(true);
+        threadGroup.setSamplerController(loopCtrl);
+
+        HashTree threadGroupTree = new HashTree();
+        threadGroupTree.add(this.samplers);
+
+        // Test plan
+        TestPlan testPlan = new TestPlan("ping");
+
+        HashTree testPlanTree = new HashTree();
+        testPlanTree.add(threadGroup, threadGroupTree);
+        if (this.resultFile != null) {
+            testPlanTree.add(new ResultSink(this.resultFile));
+        }
+        SampleStatistics statistics = new SampleStatistics();
+        testPlanTree.add(statistics);
+
+        HashTree hashTree = new HashTree();
+        hashTree.add(testPlan, testPlanTree);
+
+        // Engine
+        StandardJMeterEngine jm = new StandardJMeterEngine("localhost");
+
+        jm.configure(hashTree);
+
+        jm.run();
+
+        return statistics;
+    }
+
+    private static synchronized void prepareJMeterHome() throws IOException
+    {
+        if (!jmeterHomeReady) {
+            for (String file : JMETER_BIN_FILES) {
+                FileUtils.writeByteArrayToFile(new File("target/jmeter/home/bin/" + file),
+                    IOUtils.toByteArray(Scenario.class.getResource("/jmeterbin/" + file)));
+            }
+            jmeterHomeReady = true;
+        }
+    }
+
+    /**
+     * Add a "get" and a "view" sampler for each document of the XWiki XAR.
+     * <p>
+     * The following configuration properties are supported (set in maven):
+     * <ul>
+     * <li>localRepository: Path to maven repository, where XWiki files can be found</li>
+     * <li>pathToXWikiXar: Used to read all documents</li>
+     * <li>documentsToTest (optional): regex pattern matched against the serialized document references</li>
+     * </ul>
+     *
+     * @param samplers the list where the samplers are added
+     * @throws XarException when the XAR cannot be read
+     * @throws IOException when the XAR cannot be read
+     */
+    public static void addXarFiles(List<HTTPSampler> samplers) throws XarException, IOException
+    {
+        String path = System.getProperty("localRepository") + "/" + System.getProperty("pathToXWikiXar");
+        String patternFilter = System.getProperty("documentsToTest");
+
+        Pattern pattern = patternFilter == null ? null : Pattern.compile(patternFilter);
+
+        for (XarEntry xarEntry : XarPackage.getEntries(new File(path))) {
+            if (pattern == null || pattern.matcher(SERIALIZER.serialize(xarEntry)).matches()) {
+                samplers.add(createSample(xarEntry, "get"));
+                samplers.add(createSample(xarEntry, "view"));
+            }
+        }
+    }
+
+    /**
+     * @param documentReference the document to request
+     * @param action the action to request
+     * @return the sampler
+     * @throws UnsupportedEncodingException should not happen
+     */
+    public static HTTPSampler createSample(LocalDocumentReference documentReference, String action)
+        throws UnsupportedEncodingException
+    {
+        return createSample(SERIALIZER.serialize(documentReference) + " (" + action + ")",
+            "/xwiki/bin/" + action + "/" + URLEncoder.encode(documentReference.getParent().getName(), "UTF8") + "/"
+                + URLEncoder.encode(documentReference.getName(), "UTF8"));
+    }
+
+    /**
+     * @param name the name of the sampler
+     * @param path the path to request
+     * @return a GET sampler on the local XWiki instance
+     */
+    public static HTTPSampler createSample(String name, String path)
+    {
+        HTTPSampler httpSampler = new HTTPSampler();
+
+        httpSampler.setDomain("localhost");
+        httpSampler.setPort(Integer.valueOf(XWikiExecutor.DEFAULT_PORT));
+        httpSampler.setMethod("GET");
+
+        httpSampler.setName(path);
+        httpSampler.setPath(path);
+
+        return httpSampler;
+    }
+}
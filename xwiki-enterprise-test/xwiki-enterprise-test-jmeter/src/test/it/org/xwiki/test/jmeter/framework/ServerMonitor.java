@@ -0,0 +1,262 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.jmeter.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.apache.commons.io.FileUtils;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Reads memory and allocation figures from the JVM running XWiki through its remote JMX connector. The XWiki JVM must
+ * have been started with the options returned by {@link #getJMXOptions(int)}.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class ServerMonitor
+{
+    /** Number of bytes in a megabyte, used when reporting. */
+    public static final double MB = 1024 * 1024;
+
+    private static final Pattern PEAK_RSS_PATTERN = Pattern.compile("VmHWM:\\s*(\\d+)\\s*kB");
+
+    private static final Pattern HISTOGRAM_LINE_PATTERN =
+        Pattern.compile("^\\s*\\d+:\\s+(\\d+)\\s+(\\d+)\\s+(\\S+)", Pattern.MULTILINE);
+
+    private final JMXConnector connector;
+
+    private final MBeanServerConnection connection;
+
+    private long maxGCPause = -1;
+
+    private final MemoryMXBean memory;
+
+    private final ThreadMXBean threads;
+
+    private final RuntimeMXBean runtime;
+
+    /**
+     * Connect to the JMX agent of the XWiki JVM.
+     *
+     * @param port the port the JMX agent listens to on localhost
+     * @throws IOException when the connection fails
+     */
+    public ServerMonitor(int port) throws IOException
+    {
+        JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi");
+        this.connector = JMXConnectorFactory.connect(url);
+
+        this.connection = this.connector.getMBeanServerConnection();
+        this.memory =
+            ManagementFactory.newPlatformMXBeanProxy(this.connection, ManagementFactory.MEMORY_MXBEAN_NAME,
+                MemoryMXBean.class);
+        this.threads =
+            ManagementFactory.newPlatformMXBeanProxy(this.connection, ManagementFactory.THREAD_MXBEAN_NAME,
+                ThreadMXBean.class);
+        this.runtime =
+            ManagementFactory.newPlatformMXBeanProxy(this.connection, ManagementFactory.RUNTIME_MXBEAN_NAME,
+                RuntimeMXBean.class);
+    }
+
+    /**
+     * @param port the port the JMX agent should listen to
+     * @return the JVM options enabling an unauthenticated JMX agent on localhost
+     */
+    public static String getJMXOptions(int port)
+    {
+        return "-Dcom.sun.management.jmxremote.port=" + port + " -Dcom.sun.management.jmxremote.rmi.port=" + port
+            + " -Dcom.sun.management.jmxremote.authenticate=false -Dcom.sun.management.jmxremote.ssl=false"
+            + " -Djava.rmi.server.hostname=localhost";
+    }
+
+    /**
+     * @return the number of heap bytes currently used, garbage included
+     */
+    public long getHeapUsed()
+    {
+        return this.memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Force a full garbage collection in the XWiki JVM.
+     *
+     * @return the number of heap bytes still used after the collection
+     */
+    public long gc()
+    {
+        this.memory.gc();
+
+        return getHeapUsed();
+    }
+
+    /**
+     * Sum the bytes allocated by every live thread of the XWiki JVM. The difference between two calls approximates
+     * what the server allocated in between, as long as the request threads are pooled.
+     *
+     * @return the total number of bytes allocated so far by the live threads
+     */
+    public long getAllocatedBytes()
+    {
+        long total = 0;
+        for (long allocated : this.threads.getThreadAllocatedBytes(this.threads.getAllThreadIds())) {
+            // -1 is returned for threads which died in the meantime.
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * Count the live objects of each class, as {@code jmap -histo:live} does. A full garbage collection is done first.
+     *
+     * @return the number of instances and the number of bytes they use, indexed by class name
+     * @throws IOException when the JMX connection fails or the JVM does not support the diagnostic commands
+     */
+    public Map<String, long[]> getClassHistogram() throws IOException
+    {
+        String histogram;
+        try {
+            histogram = (String) this.connection.invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"),
+                "gcClassHistogram", new Object[] {null}, new String[] {String[].class.getName()});
+        } catch (JMException e) {
+            throw new IOException("Failed to get the class histogram", e);
+        }
+
+        Map<String, long[]> classes = new HashMap<String, long[]>();
+        Matcher matcher = HISTOGRAM_LINE_PATTERN.matcher(histogram);
+        while (matcher.find()) {
+            classes.put(matcher.group(3),
+                new long[] {Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2))});
+        }
+
+        return classes;
+    }
+
+    /**
+     * Start recording the duration of the garbage collection pauses. Collectors reporting their concurrent cycles
+     * rather than their pauses (the "Cycles" beans of ZGC and Shenandoah) are ignored.
+     *
+     * @throws IOException when the JMX connection fails
+     */
+    public void recordGCPauses() throws IOException
+    {
+        NotificationListener listener = new NotificationListener()
+        {
+            @Override
+            public void handleNotification(Notification notification, Object handback)
+            {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    if (!info.getGcName().endsWith(" Cycles")) {
+                        addGCPause(info.getGcInfo().getDuration());
+                    }
+                }
+            }
+        };
+
+        try {
+            for (ObjectName name : this.connection.queryNames(
+                new ObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*"), null)) {
+                this.connection.addNotificationListener(name, listener, null, null);
+            }
+        } catch (JMException e) {
+            throw new IOException("Failed to listen to the garbage collectors", e);
+        }
+    }
+
+    private synchronized void addGCPause(long duration)
+    {
+        this.maxGCPause = Math.max(this.maxGCPause, duration);
+    }
+
+    /**
+     * @return the longest garbage collection pause since {@link #recordGCPauses()} was called, in milliseconds, -1 if
+     *         there was none
+     */
+    public synchronized long getMaxGCPause()
+    {
+        return this.maxGCPause;
+    }
+
+    /**
+     * @return the peak resident set size of the XWiki process in bytes, -1 when not available (Linux only)
+     */
+    public long getPeakResidentSetSize()
+    {
+        File status = new File("/proc/" + getProcessId() + "/status");
+        if (status.exists()) {
+            try {
+                Matcher matcher = PEAK_RSS_PATTERN.matcher(FileUtils.readFileToString(status, "US-ASCII"));
+                if (matcher.find()) {
+                    return Long.parseLong(matcher.group(1)) * 1024;
+                }
+            } catch (IOException e) {
+                // The process is gone.
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return the operating system identifier of the XWiki process
+     */
+    public String getProcessId()
+    {
+        // The name of the runtime is "pid@hostname" on all the JVMs we support.
+        return this.runtime.getName().split("@")[0];
+    }
+
+    /**
+     * Close the JMX connection.
+     */
+    public void close()
+    {
+        try {
+            this.connector.close();
+        } catch (IOException e) {
+            // The XWiki JVM is probably already stopped.
+        }
+    }
+}
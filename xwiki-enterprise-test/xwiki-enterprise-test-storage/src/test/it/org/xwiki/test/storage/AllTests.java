@@ -25,7 +25,9 @@
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.test.integration.XWikiExecutor;
 import org.xwiki.test.storage.framework.AbstractTest;
+import org.xwiki.test.storage.framework.RequestTimes;
 import org.xwiki.test.storage.profiles.ForEachProfileSuite;
+import org.xwiki.test.storage.profiles.Profile;
 
 /**
  * Runs all functional tests found in the classpath.
@@ -39,9 +41,14 @@ public class AllTests implements Initializable
     @Inject
     private XWikiExecutor executor;
 
+    @Inject
+    private Profile profile;
+
     @Override
     public void initialize()
     {
         AbstractTest.setExecutor(executor);
+        AbstractTest.setProfile(profile);
+        RequestTimes.start();
     }
 }
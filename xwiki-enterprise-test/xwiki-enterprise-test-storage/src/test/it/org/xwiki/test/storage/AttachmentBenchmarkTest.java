@@ -0,0 +1,128 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+import org.xwiki.test.storage.framework.GeneratedPartSource;
+
+/**
+ * Measure the attachment operations for increasing attachment sizes, in every configuration profile, to compare the
+ * attachment stores. The figures are the median durations in milliseconds, written in
+ * {@code target/benchmark/attachments.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageBenchmarkSizes (optional): comma separated attachment sizes, e.g. "1KB,10MB,1GB"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class AttachmentBenchmarkTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "AttachmentBenchmark";
+
+    private static final String FILENAME = "benchmark.bin";
+
+    private static final String[] OPERATIONS =
+        {"upload", "download", "overwrite", "list versions", "rollback", "delete"};
+
+    private final long[] sizes = parseSizes(System.getProperty("storageBenchmarkSizes", "1KB,1MB,10MB,100MB,1GB"));
+
+    @Test
+    public void benchmarkAttachments() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("attachments");
+
+        long maxSize = 0;
+        for (long size : this.sizes) {
+            maxSize = Math.max(maxSize, size);
+        }
+        setUploadMaxSize(2 * maxSize);
+
+        try {
+            for (long size : this.sizes) {
+                double[][] durations = new double[OPERATIONS.length][REPETITIONS];
+                for (int i = 0; i < REPETITIONS; i++) {
+                    measure(size, i, durations);
+                }
+                for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                    table.set(getProfile(), formatSize(size) + ' ' + OPERATIONS[operation],
+                        median(durations[operation]));
+                }
+            }
+        } finally {
+            // Keep the figures of the sizes measured before a failure.
+            table.write();
+        }
+    }
+
+    /**
+     * Go through the life cycle of an attachment once.
+     *
+     * @param size the size of the attachment
+     * @param repetition the index of the repetition
+     * @param durations where the durations of each operation are stored
+     */
+    private void measure(long size, int repetition, double[][] durations) throws Exception
+    {
+        String page = "Size" + size + "Run" + repetition;
+
+        // Start from a new document, version 1.1.
+        doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+        consume(doPostAsAdmin(SPACE, page, null, "save", null, null));
+
+        try {
+            // Version 2.1.
+            long start = System.nanoTime();
+            consume(doUploadAsAdmin(SPACE, page, new GeneratedPartSource(FILENAME, size, repetition)));
+            durations[0][repetition] = elapsed(start);
+
+            start = System.nanoTime();
+            long read = consume(doStreamingGetAsAdmin(SPACE, page, FILENAME, "download", null));
+            durations[1][repetition] = elapsed(start);
+            Assert.assertEquals(size, read);
+
+            // Version 3.1.
+            start = System.nanoTime();
+            consume(doUploadAsAdmin(SPACE, page, new GeneratedPartSource(FILENAME, size, -repetition - 1)));
+            durations[2][repetition] = elapsed(start);
+
+            start = System.nanoTime();
+            consume(doPostAsAdmin(SPACE, page, FILENAME, "viewattachrev", null, null));
+            durations[3][repetition] = elapsed(start);
+
+            // Back to the first content, version 4.1.
+            start = System.nanoTime();
+            consume(doPostAsAdmin(SPACE, page, null, "rollback", "rev=2.1&confirm=1", null));
+            durations[4][repetition] = elapsed(start);
+
+            start = System.nanoTime();
+            consume(doPostAsAdmin(SPACE, page, FILENAME, "delattachment", null, null));
+            durations[5][repetition] = elapsed(start);
+        } finally {
+            // Don't leave gigabytes in the database and on the disk.
+            doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+
+/**
+ * Re-upload a text attachment many times with small changes, as happens with exported CSV files or logs, and compare
+ * the disk used per version and the time to get old versions back (the downloadrev action, which calls
+ * {@code getAttachmentRevision()}) in each profile. Written in {@code target/benchmark/attachment-versions.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageVersionedAttachmentSize (optional): the size of the attachment, e.g. "1MB"</li>
+ * <li>storageAttachmentVersions (optional): the number of versions</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class AttachmentVersionBenchmarkTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "AttachmentVersionBenchmark";
+
+    private static final String PAGE = "Versions";
+
+    private static final String FILENAME = "export.csv";
+
+    private static final double KB = 1024;
+
+    private final long size = parseSizes(System.getProperty("storageVersionedAttachmentSize", "1MB"))[0];
+
+    private final int versions = Integer.getInteger("storageAttachmentVersions", 100);
+
+    @Test
+    public void benchmarkAttachmentVersions() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("attachment-versions");
+        setUploadMaxSize(2 * this.size);
+
+        // Version 1.1 of the document.
+        doPostAsAdmin(SPACE, PAGE, null, "delete", "confirm=1", null).releaseConnection();
+        consume(doPostAsAdmin(SPACE, PAGE, null, "save", null, null));
+
+        try {
+            StringBuilder csv = new StringBuilder();
+            Random random = new Random(0);
+            while (csv.length() < this.size) {
+                appendLine(csv, random);
+            }
+
+            // Attachment version 1.1 is document version 2.1, and so on.
+            long footprint = getStorageFootprint();
+            for (int i = 0; i < this.versions; i++) {
+                // Change a few lines, as a daily export would.
+                for (int j = 0; j < 10; j++) {
+                    appendLine(csv, random);
+                }
+                final byte[] content = csv.toString().getBytes("UTF-8");
+                consume(doUploadAsAdmin(SPACE, PAGE, new HashMap<String, byte[]>()
+                {
+                    {
+                        put(FILENAME, content);
+                    }
+                }));
+            }
+            table.set(getProfile(), "footprint per version (KB)",
+                (getStorageFootprint() - footprint) / KB / this.versions);
+
+            int[] revisions = {1, this.versions / 2, this.versions};
+            String[] labels = {"first", "middle", "last"};
+            for (int i = 0; i < revisions.length; i++) {
+                double[] durations = new double[REPETITIONS];
+                for (int j = 0; j < REPETITIONS; j++) {
+                    long start = System.nanoTime();
+                    long read = consume(
+                        doPostAsAdmin(SPACE, PAGE, FILENAME, "downloadrev", "rev=1." + revisions[i], null));
+                    durations[j] = elapsed(start);
+                    Assert.assertTrue(read >= this.size);
+                }
+                table.set(getProfile(), "get " + labels[i] + " version (ms)", median(durations));
+            }
+        } finally {
+            doPostAsAdmin(SPACE, PAGE, null, "delete", "confirm=1", null).releaseConnection();
+        }
+
+        table.write();
+    }
+
+    private void appendLine(StringBuilder csv, Random random)
+    {
+        csv.append(random.nextInt(1000000)).append(",item").append(random.nextInt(1000)).append(',');
+        csv.append(random.nextDouble()).append('\n');
+    }
+}
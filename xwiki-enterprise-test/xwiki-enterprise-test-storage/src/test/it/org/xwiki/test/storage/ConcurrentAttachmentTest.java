@@ -0,0 +1,258 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+import org.xwiki.test.storage.framework.GeneratedPartSource;
+import org.xwiki.test.storage.framework.StoreTestUtils;
+
+/**
+ * Have many clients upload, overwrite and delete the same few attachments at the same time in each profile, then
+ * check that every version left is byte-identical to one of the uploads and that no upload is missing. An upload is
+ * lost when it succeeded, no delete of the same attachment was running or started after it, and none of the versions
+ * left has its content. The throughput, the failed requests and the lost updates are written in
+ * {@code target/benchmark/concurrent-attachments.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageStressClients (optional): the number of concurrent clients</li>
+ * <li>storageStressOperations (optional): the number of operations of each client</li>
+ * <li>storageStressDocuments (optional): the number of documents the clients share</li>
+ * <li>storageStressSize (optional): the size of the attachments, e.g. "64KB"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class ConcurrentAttachmentTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "ConcurrentAttachmentTest";
+
+    private static final String[] FILENAMES = {"first.bin", "second.bin"};
+
+    private static final double MB = 1024 * 1024;
+
+    private final int clients = Integer.getInteger("storageStressClients", 8);
+
+    private final int operations = Integer.getInteger("storageStressOperations", 50);
+
+    private final int documents = Integer.getInteger("storageStressDocuments", 4);
+
+    private final long size = parseSizes(System.getProperty("storageStressSize", "64KB"))[0];
+
+    /**
+     * What was done to an attachment, with the {@link System#nanoTime()} bounds of each request.
+     */
+    private static final class History
+    {
+        /**
+         * The checksums of all the uploads sent, recorded before sending since an upload which fails or times out on
+         * the client side may still be saved by the server.
+         */
+        private final Set<String> candidateChecksums = new HashSet<String>();
+
+        private final List<long[]> uploadTimes = new ArrayList<long[]>();
+
+        private final List<String> uploadChecksums = new ArrayList<String>();
+
+        private final List<long[]> deleteTimes = new ArrayList<long[]>();
+
+        synchronized void addCandidate(String checksum)
+        {
+            this.candidateChecksums.add(checksum);
+        }
+
+        /**
+         * Record an upload the server confirmed.
+         */
+        synchronized void upload(long start, long end, String checksum)
+        {
+            this.uploadTimes.add(new long[] {start, end});
+            this.uploadChecksums.add(checksum);
+        }
+
+        synchronized void delete(long start, long end)
+        {
+            this.deleteTimes.add(new long[] {start, end});
+        }
+
+        /**
+         * @return true if the checksum is the one of an upload which was sent, committed or not
+         */
+        synchronized boolean isCandidate(String checksum)
+        {
+            return this.candidateChecksums.contains(checksum);
+        }
+
+        /**
+         * @return the checksums of the committed uploads which no delete may have removed
+         */
+        synchronized Set<String> getExpectedChecksums()
+        {
+            Set<String> expected = new HashSet<String>();
+            for (int i = 0; i < this.uploadTimes.size(); i++) {
+                boolean deleted = false;
+                for (long[] delete : this.deleteTimes) {
+                    deleted |= delete[1] > this.uploadTimes.get(i)[0];
+                }
+                if (!deleted) {
+                    expected.add(this.uploadChecksums.get(i));
+                }
+            }
+
+            return expected;
+        }
+    }
+
+    @Test
+    public void testConcurrentAttachmentWrites() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("concurrent-attachments");
+        setUploadMaxSize(2 * this.size);
+
+        final History[][] histories = new History[this.documents][FILENAMES.length];
+        for (int document = 0; document < this.documents; document++) {
+            doPostAsAdmin(SPACE, getPage(document), null, "delete", "confirm=1", null).releaseConnection();
+            consume(doPostAsAdmin(SPACE, getPage(document), null, "save", null, null));
+            for (int file = 0; file < FILENAMES.length; file++) {
+                histories[document][file] = new History();
+            }
+        }
+
+        try {
+            final AtomicInteger succeeded = new AtomicInteger();
+            final AtomicInteger failed = new AtomicInteger();
+            final AtomicInteger uploaded = new AtomicInteger();
+
+            // The threads are created by the test thread and so inherit the executor and the profile.
+            ExecutorService pool = Executors.newFixedThreadPool(this.clients);
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            long start = System.nanoTime();
+            for (int client = 0; client < this.clients; client++) {
+                final int seed = client;
+                results.add(pool.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < ConcurrentAttachmentTest.this.operations; i++) {
+                            int document = random.nextInt(histories.length);
+                            int file = random.nextInt(FILENAMES.length);
+                            try {
+                                if (random.nextInt(5) == 0) {
+                                    long begin = System.nanoTime();
+                                    consume(doPostAsAdmin(SPACE, getPage(document), FILENAMES[file],
+                                        "delattachment", null, null));
+                                    histories[document][file].delete(begin, System.nanoTime());
+                                } else {
+                                    // Uploading an existing attachment overwrites it with a new version.
+                                    GeneratedPartSource source = new GeneratedPartSource(FILENAMES[file],
+                                        ConcurrentAttachmentTest.this.size, (long) seed << 32 | i);
+                                    histories[document][file].addCandidate(source.getChecksum());
+                                    long begin = System.nanoTime();
+                                    consume(doUploadAsAdmin(SPACE, getPage(document), source));
+                                    histories[document][file].upload(begin, System.nanoTime(),
+                                        source.getChecksum());
+                                    uploaded.incrementAndGet();
+                                }
+                                succeeded.incrementAndGet();
+                            } catch (IOException e) {
+                                failed.incrementAndGet();
+                            }
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+            pool.shutdown();
+            double seconds = elapsed(start) / 1000;
+
+            table.set(getProfile(), "operations (per s)", succeeded.get() / seconds);
+            table.set(getProfile(), "uploads (MB/s)", uploaded.get() * this.size / MB / seconds);
+            table.set(getProfile(), "failed requests", failed.get());
+
+            int corrupted = 0;
+            int lost = 0;
+            for (int document = 0; document < this.documents; document++) {
+                for (int file = 0; file < FILENAMES.length; file++) {
+                    Set<String> left = new HashSet<String>();
+                    for (String version : getVersions(document, FILENAMES[file])) {
+                        String checksum = StoreTestUtils.getChecksum(
+                            doPostAsAdmin(SPACE, getPage(document), FILENAMES[file], "downloadrev", "rev=" + version,
+                                null));
+                        if (!histories[document][file].isCandidate(checksum)) {
+                            corrupted++;
+                        }
+                        left.add(checksum);
+                    }
+                    Set<String> expected = histories[document][file].getExpectedChecksums();
+                    expected.removeAll(left);
+                    lost += expected.size();
+                }
+            }
+            table.set(getProfile(), "corrupted versions", corrupted);
+            table.set(getProfile(), "lost updates", lost);
+            table.write();
+
+            Assert.assertEquals("Attachment versions differ from all the uploads", 0, corrupted);
+        } finally {
+            for (int document = 0; document < this.documents; document++) {
+                doPostAsAdmin(SPACE, getPage(document), null, "delete", "confirm=1", null).releaseConnection();
+            }
+        }
+    }
+
+    private String getPage(int document)
+    {
+        return "Document" + document;
+    }
+
+    /**
+     * @return the versions of the attachment, empty if it is deleted
+     */
+    private String[] getVersions(int document, String filename) throws IOException
+    {
+        String versions = executeGroovy("def attachment = xwiki.getDocument('" + SPACE + '.' + getPage(document)
+            + "').getAttachment('" + filename + "')\n"
+            + "if (attachment != null) { print attachment.versions.join(',') }");
+
+        return versions.isEmpty() ? new String[0] : versions.split(",");
+    }
+}
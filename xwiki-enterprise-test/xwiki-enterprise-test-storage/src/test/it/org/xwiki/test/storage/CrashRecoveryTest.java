@@ -0,0 +1,261 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.SystemUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+import org.xwiki.test.storage.framework.GeneratedPartSource;
+import org.xwiki.test.storage.framework.StoreTestUtils;
+
+/**
+ * Measure the attachment upload throughput of concurrent writers in each profile, then kill XWiki while they are
+ * writing and check the attachments after the restart: the uploads which succeeded before the crash must be there, and
+ * every attachment must hold the content of one of its uploads, never a partial or mixed one. Compare the profiles
+ * with {@link org.xwiki.test.storage.profiles.GroupCommitAttachmentStorageProfile} to see what batching the flushes
+ * gains. Written in {@code target/benchmark/crash.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageCrashWriters (optional): the number of concurrent writers</li>
+ * <li>storageCrashAttachments (optional): the number of attachments each writer uploads before the crash</li>
+ * <li>storageCrashSize (optional): the size of the attachments, e.g. "256KB"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class CrashRecoveryTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "CrashRecoveryTest";
+
+    private static final double MB = 1024 * 1024;
+
+    private final int writers = Integer.getInteger("storageCrashWriters", 8);
+
+    private final int attachments = Integer.getInteger("storageCrashAttachments", 20);
+
+    private final long size = parseSizes(System.getProperty("storageCrashSize", "256KB"))[0];
+
+    /** The checksums of the contents uploaded for each page and attachment, whether the upload finished or not. */
+    private final Map<String, Set<String>> uploaded = new HashMap<String, Set<String>>();
+
+    /** The attachments which were uploaded successfully at least once. */
+    private final Set<String> committed = new HashSet<String>();
+
+    @Test
+    public void testCrashDuringWrites() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("crash");
+        setUploadMaxSize(2 * this.size);
+
+        // A page per writer, so that the concurrent saves of a document don't hide what the crash did.
+        for (int writer = 0; writer < this.writers; writer++) {
+            doPostAsAdmin(SPACE, getPage(writer), null, "delete", "confirm=1", null).releaseConnection();
+            consume(doPostAsAdmin(SPACE, getPage(writer), null, "save", null, null));
+        }
+
+        try {
+            // Throughput, each writer with its own attachments.
+            long start = System.nanoTime();
+            int count = write(new AtomicBoolean(true), new AtomicBoolean(), this.attachments);
+            double seconds = elapsed(start) / 1000;
+            table.set(getProfile(), "uploads (per s)", count / seconds);
+            table.set(getProfile(), "uploads (MB/s)", count * this.size / MB / seconds);
+
+            // Overwrite the same attachments until XWiki is killed.
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicBoolean crashing = new AtomicBoolean();
+            ExecutorService crash = Executors.newSingleThreadExecutor();
+            Future<Integer> writes = crash.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws Exception
+                {
+                    return write(running, crashing, Integer.MAX_VALUE);
+                }
+            });
+            Thread.sleep(Math.max(1000, (long) (seconds * 500)));
+            // Set before the kill, the writers fail from the moment the connections are reset.
+            crashing.set(true);
+            kill();
+            running.set(false);
+            writes.get();
+            crash.shutdown();
+
+            long restart = System.nanoTime();
+            getExecutor().start();
+            clearSecretToken();
+            table.set(getProfile(), "restart after crash (s)", elapsed(restart) / 1000);
+
+            int lost = 0;
+            int corrupted = 0;
+            Map<String, String> left = new HashMap<String, String>();
+            for (int writer = 0; writer < this.writers; writer++) {
+                left.putAll(getAttachments(getPage(writer)));
+            }
+            for (String attachment : this.uploaded.keySet()) {
+                if (!left.containsKey(attachment)) {
+                    lost += this.committed.contains(attachment) ? 1 : 0;
+                } else {
+                    String[] reference = attachment.split("/");
+                    String checksum = StoreTestUtils.getChecksum(
+                        doPostAsAdmin(SPACE, reference[0], reference[1], "download", null, null));
+                    if (!this.uploaded.get(attachment).contains(checksum)
+                        || Long.parseLong(left.get(attachment)) != this.size) {
+                        corrupted++;
+                    }
+                }
+            }
+            table.set(getProfile(), "lost attachments", lost);
+            table.set(getProfile(), "corrupted attachments", corrupted);
+
+            Assert.assertEquals("Attachments uploaded before the crash are missing", 0, lost);
+            Assert.assertEquals("Attachments were left partially written", 0, corrupted);
+        } finally {
+            for (int writer = 0; writer < this.writers; writer++) {
+                doPostAsAdmin(SPACE, getPage(writer), null, "delete", "confirm=1", null).releaseConnection();
+            }
+            table.write();
+        }
+    }
+
+    /**
+     * Upload attachments from concurrent writers, each writer overwriting its own attachments in turn.
+     *
+     * @param running cleared to stop the writers
+     * @param crashing set when XWiki is about to be killed, the writers then stop at their first failed upload
+     * @param uploads the number of uploads of each writer
+     * @return the number of successful uploads
+     */
+    private int write(final AtomicBoolean running, final AtomicBoolean crashing, final int uploads) throws Exception
+    {
+        final AtomicInteger succeeded = new AtomicInteger();
+
+        // The threads are created by the test thread and so inherit the executor and the profile.
+        ExecutorService pool = Executors.newFixedThreadPool(this.writers);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int writer = 0; writer < this.writers; writer++) {
+            final int index = writer;
+            results.add(pool.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    for (int i = 0; i < uploads && running.get(); i++) {
+                        String filename = "attachment" + i % CrashRecoveryTest.this.attachments + ".bin";
+                        GeneratedPartSource source = new GeneratedPartSource(filename,
+                            CrashRecoveryTest.this.size, (long) index << 32 | i);
+                        String attachment = getPage(index) + '/' + filename;
+                        addUpload(attachment, source.getChecksum());
+                        try {
+                            consume(doUploadAsAdmin(SPACE, getPage(index), source));
+                            addCommitted(attachment);
+                            succeeded.incrementAndGet();
+                        } catch (IOException e) {
+                            if (!crashing.get()) {
+                                throw e;
+                            }
+                            // Connection reset or refused, XWiki is dead.
+                            break;
+                        }
+                    }
+
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+
+        return succeeded.get();
+    }
+
+    private String getPage(int writer)
+    {
+        return "Writer" + writer;
+    }
+
+    private synchronized void addUpload(String attachment, String checksum)
+    {
+        if (!this.uploaded.containsKey(attachment)) {
+            this.uploaded.put(attachment, new HashSet<String>());
+        }
+        this.uploaded.get(attachment).add(checksum);
+    }
+
+    private synchronized void addCommitted(String attachment)
+    {
+        this.committed.add(attachment);
+    }
+
+    /**
+     * @param page the page holding the attachments
+     * @return the size of each attachment of the page, by page and file name
+     */
+    private Map<String, String> getAttachments(String page) throws IOException
+    {
+        Map<String, String> sizes = new HashMap<String, String>();
+        String list = executeGroovy("xwiki.getDocument('" + SPACE + '.' + page + "').attachmentList.each {\n"
+            + "  println it.filename + ':' + it.filesize\n"
+            + "}");
+        for (String line : list.split("\n")) {
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                sizes.put(page + '/' + line.substring(0, separator), line.substring(separator + 1).trim());
+            }
+        }
+
+        return sizes;
+    }
+
+    /**
+     * Kill the XWiki process, without letting it stop cleanly.
+     */
+    private void kill() throws Exception
+    {
+        String pid = executeGroovy("print java.lang.management.ManagementFactory.runtimeMXBean.name.split('@')[0]");
+        ProcessBuilder builder;
+        if (SystemUtils.IS_OS_WINDOWS) {
+            builder = new ProcessBuilder("taskkill", "/F", "/PID", pid);
+        } else {
+            builder = new ProcessBuilder("kill", "-9", pid);
+        }
+        Assert.assertEquals("Failed to kill XWiki", 0, builder.inheritIO().start().waitFor());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+import org.xwiki.test.storage.framework.GeneratedPartSource;
+
+/**
+ * Copy a document holding an attachment many times and roll back versions re-uploading the same content, to measure
+ * what identical attachment contents cost in each profile: the disk footprint per copy and the time to copy and to
+ * roll back. Written in {@code target/benchmark/deduplication.txt}; the content-addressed store should show a
+ * footprint close to zero.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageDeduplicationSize (optional): the size of the copied attachment, e.g. "1MB"</li>
+ * <li>storageDeduplicationCopies (optional): the number of copies</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class DeduplicationBenchmarkTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "DeduplicationBenchmark";
+
+    private static final String SOURCE = "Source";
+
+    private static final String FILENAME = "shared.bin";
+
+    private static final double KB = 1024;
+
+    private final long size = parseSizes(System.getProperty("storageDeduplicationSize", "1MB"))[0];
+
+    private final int copies = Integer.getInteger("storageDeduplicationCopies", 100);
+
+    @Test
+    public void benchmarkDeduplication() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("deduplication");
+        setUploadMaxSize(2 * this.size);
+
+        doPostAsAdmin(SPACE, SOURCE, null, "delete", "confirm=1", null).releaseConnection();
+        deleteCopies();
+        consume(doPostAsAdmin(SPACE, SOURCE, null, "save", null, null));
+        consume(doUploadAsAdmin(SPACE, SOURCE, new GeneratedPartSource(FILENAME, this.size, 0)));
+
+        try {
+            // Copies
+            long footprint = getStorageFootprint();
+            double[] copyDurations = new double[this.copies];
+            for (int i = 0; i < this.copies; i++) {
+                long start = System.nanoTime();
+                executeGroovy("xwiki.copyDocument('" + SPACE + '.' + SOURCE + "', '" + SPACE + ".Copy" + i + "')");
+                copyDurations[i] = elapsed(start);
+            }
+            table.set(getProfile(), "copy (ms)", median(copyDurations));
+            table.set(getProfile(), "footprint per copy (KB)", (getStorageFootprint() - footprint) / KB / this.copies);
+
+            // Rollbacks to the same content: version 2.1 holds the attachment, each upload of the same content
+            // creates a new version which is then rolled back.
+            footprint = getStorageFootprint();
+            double[] rollbackDurations = new double[REPETITIONS];
+            for (int i = 0; i < REPETITIONS; i++) {
+                consume(doUploadAsAdmin(SPACE, SOURCE, new GeneratedPartSource(FILENAME, this.size, 0)));
+                long start = System.nanoTime();
+                consume(doPostAsAdmin(SPACE, SOURCE, null, "rollback", "rev=2.1&confirm=1", null));
+                rollbackDurations[i] = elapsed(start);
+            }
+            table.set(getProfile(), "rollback (ms)", median(rollbackDurations));
+            table.set(getProfile(), "footprint per identical version (KB)",
+                (getStorageFootprint() - footprint) / KB / (2 * REPETITIONS));
+        } finally {
+            doPostAsAdmin(SPACE, SOURCE, null, "delete", "confirm=1", null).releaseConnection();
+            deleteCopies();
+        }
+
+        table.write();
+    }
+
+    private void deleteCopies() throws Exception
+    {
+        executeGroovy("for (i in 0..<" + this.copies + ") {\n"
+            + "  def copy = xwiki.getDocument('" + SPACE + ".Copy' + i)\n"
+            + "  if (!copy.isNew()) { copy.delete() }\n"
+            + "}");
+    }
+}
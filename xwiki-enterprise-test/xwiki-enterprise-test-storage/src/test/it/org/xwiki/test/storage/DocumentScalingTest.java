@@ -0,0 +1,153 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+
+/**
+ * Save, view, diff and export documents of several megabytes of wiki syntax in each profile, the way generated report
+ * pages are, going further than {@link DocumentTest#testSaveOfThreeHundredKilobyteDocument()}. The median durations,
+ * the server heap peaks and whether the size passed the request size limits (the form size of the container, which
+ * fails the save) are written in {@code target/benchmark/large-documents.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageDocumentSizes (optional): comma separated content sizes, e.g. "1MB,5MB,20MB"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class DocumentScalingTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "DocumentScalingTest";
+
+    private static final String[] OPERATIONS = {"save", "view", "diff", "export"};
+
+    private static final double MB = 1024 * 1024;
+
+    private final long[] sizes = parseSizes(System.getProperty("storageDocumentSizes", "1MB,5MB,20MB"));
+
+    @Test
+    public void benchmarkLargeDocuments() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("large-documents");
+
+        for (long size : this.sizes) {
+            String page = "Size" + size;
+            String label = formatSize(size) + ' ';
+            String body = generateContent(size);
+
+            doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+            try {
+                // Version 1.1, the one the diffs are made against.
+                try {
+                    save(page, "Revision 0\n\n" + body);
+                    table.set(getProfile(), label + "accepted", "yes");
+                } catch (IOException e) {
+                    table.set(getProfile(), label + "accepted", "no (" + e.getMessage() + ')');
+                    continue;
+                }
+
+                double[][] durations = new double[OPERATIONS.length][REPETITIONS];
+                long[] peakHeaps = new long[OPERATIONS.length];
+                for (int i = 0; i < REPETITIONS; i++) {
+                    // Version (i + 2).1, only the first line changes.
+                    String content = "Revision " + (i + 1) + "\n\n" + body;
+                    resetPeakHeap();
+                    long start = System.nanoTime();
+                    save(page, content);
+                    durations[0][i] = elapsed(start);
+                    peakHeaps[0] = Math.max(peakHeaps[0], getServerPeakHeap());
+
+                    String[][] requests = {
+                        {"view", "xpage=plain"},
+                        {"view", "viewer=changes&rev1=1.1&rev2=" + (i + 2) + ".1"},
+                        {"export", "format=xar&name=" + page + "&pages=" + SPACE + '.' + page}
+                    };
+                    for (int operation = 1; operation < OPERATIONS.length; operation++) {
+                        resetPeakHeap();
+                        start = System.nanoTime();
+                        consume(doPostAsAdmin(SPACE, page, null, requests[operation - 1][0],
+                            requests[operation - 1][1], null));
+                        durations[operation][i] = elapsed(start);
+                        peakHeaps[operation] = Math.max(peakHeaps[operation], getServerPeakHeap());
+                    }
+                }
+
+                for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                    table.set(getProfile(), label + OPERATIONS[operation] + " (ms)", median(durations[operation]));
+                    table.set(getProfile(), label + OPERATIONS[operation] + " server peak heap (MB)",
+                        peakHeaps[operation] / MB);
+                }
+            } finally {
+                doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+                table.write();
+            }
+        }
+    }
+
+    private void save(String page, final String content) throws IOException
+    {
+        consume(doPostAsAdmin(SPACE, page, null, "save", null, new HashMap<String, String>()
+        {
+            {
+                put("content", content);
+            }
+        }));
+    }
+
+    /**
+     * Generate wiki syntax looking like a report: sections holding paragraphs with some formatting and tables.
+     *
+     * @param size the number of characters
+     * @return the content
+     */
+    private String generateContent(long size)
+    {
+        Random random = new Random(size);
+        StringBuilder content = new StringBuilder((int) size + 100);
+        for (int section = 0; content.length() < size; section++) {
+            content.append("== Section ").append(section).append(" ==\n\n");
+            for (int paragraph = 0; paragraph < 5; paragraph++) {
+                for (int word = 0; word < 80; word++) {
+                    String text = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+                    content.append(word % 17 == 0 ? "**" + text + "**" : text).append(' ');
+                }
+                content.append("\n\n");
+            }
+            content.append("|=Item|=Count|=Ratio\n");
+            for (int row = 0; row < 20; row++) {
+                content.append('|').append(random.nextInt(1000)).append('|').append(random.nextInt());
+                content.append('|').append(random.nextDouble()).append('\n');
+            }
+            content.append('\n');
+        }
+        content.setLength((int) size);
+
+        return content.toString();
+    }
+}
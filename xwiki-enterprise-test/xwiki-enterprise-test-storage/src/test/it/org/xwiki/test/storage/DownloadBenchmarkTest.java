@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.io.SequenceInputStream;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+import org.xwiki.test.storage.framework.GeneratedPartSource;
+import org.xwiki.test.storage.framework.StoreTestUtils;
+
+/**
+ * Download large attachments in each profile and measure the throughput and the CPU time XWiki spends per gigabyte,
+ * to compare the stream copying download path with the one transferring the files directly (see
+ * {@link org.xwiki.test.storage.profiles.ZeroCopyDownloadProfile}). Partial downloads are checked too: a download
+ * resumed from the middle of the attachment with a Range request must give back the attachment. Written in
+ * {@code target/benchmark/downloads.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageDownloadSizes (optional): comma separated attachment sizes, e.g. "100MB,1GB"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class DownloadBenchmarkTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "DownloadBenchmark";
+
+    private static final String FILENAME = "download.bin";
+
+    private static final String RANGE = "Range";
+
+    private static final int PARTIAL_CONTENT = 206;
+
+    private static final double MB = 1024 * 1024;
+
+    private static final double GB = 1024 * MB;
+
+    private final long[] sizes = parseSizes(System.getProperty("storageDownloadSizes", "100MB,1GB"));
+
+    @Test
+    public void benchmarkDownloads() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("downloads");
+
+        long maxSize = 0;
+        for (long size : this.sizes) {
+            maxSize = Math.max(maxSize, size);
+        }
+        setUploadMaxSize(2 * maxSize);
+
+        for (long size : this.sizes) {
+            String page = "Size" + size;
+            String label = formatSize(size) + ' ';
+            GeneratedPartSource source = new GeneratedPartSource(FILENAME, size, size);
+
+            doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+            try {
+                consume(doUploadAsAdmin(SPACE, page, source));
+
+                double[] durations = new double[REPETITIONS];
+                double[] cpuTimes = new double[REPETITIONS];
+                for (int i = 0; i < REPETITIONS; i++) {
+                    long cpuTime = getServerCpuTime();
+                    long start = System.nanoTime();
+                    String checksum =
+                        StoreTestUtils.getChecksum(doStreamingGetAsAdmin(SPACE, page, FILENAME, "download", null));
+                    durations[i] = elapsed(start);
+                    cpuTimes[i] = getServerCpuTime() - cpuTime;
+                    Assert.assertEquals("Corrupted download", source.getChecksum(), checksum);
+                }
+                table.set(getProfile(), label + "download (MB/s)", size / MB / (median(durations) / 1000));
+                table.set(getProfile(), label + "server CPU (s/GB)", median(cpuTimes) / 1000000000 / (size / GB));
+
+                // Resume a download interrupted in the middle.
+                long half = size / 2;
+                long start = System.nanoTime();
+                HttpMethod first = doStreamingGetAsAdmin(SPACE, page, FILENAME, "download", null,
+                    new Header(RANGE, "bytes=0-" + (half - 1)));
+                HttpMethod second = doStreamingGetAsAdmin(SPACE, page, FILENAME, "download", null,
+                    new Header(RANGE, "bytes=" + half + '-'));
+                try {
+                    if (first.getStatusCode() == PARTIAL_CONTENT && second.getStatusCode() == PARTIAL_CONTENT) {
+                        String checksum = StoreTestUtils.getChecksum(new SequenceInputStream(
+                            first.getResponseBodyAsStream(), second.getResponseBodyAsStream()));
+                        table.set(getProfile(), label + "resumed download (MB/s)", size / MB / (elapsed(start) / 1000));
+                        Assert.assertEquals("Corrupted resumed download", source.getChecksum(), checksum);
+                    } else {
+                        table.set(getProfile(), label + "resumed download (MB/s)", "no range support");
+                    }
+                } finally {
+                    first.releaseConnection();
+                    second.releaseConnection();
+                }
+            } finally {
+                doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+                table.write();
+            }
+        }
+    }
+}
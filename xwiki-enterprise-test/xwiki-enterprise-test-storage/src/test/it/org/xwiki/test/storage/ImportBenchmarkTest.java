@@ -0,0 +1,206 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.httpclient.methods.multipart.FilePartSource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+
+/**
+ * Import generated XARs of thousands of pages, each with an attachment, in each profile and measure the import time,
+ * the server heap peak and the rate at which the database and attachment files grow. Each XAR is imported twice, the
+ * second import adding a version to every page. The generated XARs carry no history of their own (writing the
+ * archives of many versions would mostly measure the XAR generator), so the history side of the import is only
+ * covered by the second import. The number of imported pages is checked after each import.
+ * <p>
+ * Two import paths are compared: the {@code import} action, which loads the whole package, and the filter streams
+ * ({@code xwiki+xar/1.1} to {@code xwiki+instance}), which read the XAR entry by entry and save each document as soon
+ * as it is read, so that the heap does not depend on the package size. Written in
+ * {@code target/benchmark/import.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageImportPages (optional): comma separated numbers of pages of the generated XARs, e.g. "1k,10k"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class ImportBenchmarkTest extends AbstractBenchmarkTest
+{
+    private static final String XAR_DIRECTORY = "target/benchmark/xar";
+
+    private static final int CONTENT_SIZE = 1024;
+
+    private static final double MB = 1024 * 1024;
+
+    private static final String FILTER_IMPORT_SCRIPT =
+        "def input = services.component.getInstance(org.xwiki.filter.input.InputFilterStreamFactory, "
+        + "'xwiki+xar/1.1').createInputFilterStream(['source': "
+        + "new org.xwiki.filter.input.DefaultFileInputSource(new File('%s'))])\n"
+        + "def output = services.component.getInstance(org.xwiki.filter.output.OutputFilterStreamFactory, "
+        + "'xwiki+instance').createOutputFilterStream(['versionPreserved': false])\n"
+        + "try {\n"
+        + "  input.read(output.filter)\n"
+        + "} finally {\n"
+        + "  input.close()\n"
+        + "  output.close()\n"
+        + "}";
+
+    private static final String COUNT_PAGES_SCRIPT =
+        "print services.query.xwql('select count(doc.fullName) from Document doc where doc.space = :space')"
+        + ".bindValue('space', '%s').execute()[0]";
+
+    private static final String DELETE_SPACE_SCRIPT =
+        "for (name in services.query.xwql('where doc.space = :space').bindValue('space', '%s').execute()) {\n"
+        + "  xwiki.getDocument(name).delete()\n"
+        + "}";
+
+    private final long[] pageCounts = parseCounts(System.getProperty("storageImportPages", "1k,10k,100k"));
+
+    @Test
+    public void benchmarkImport() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("import");
+
+        for (long pages : this.pageCounts) {
+            for (boolean streaming : new boolean[] {false, true}) {
+                String space = "ImportBenchmark" + pages + (streaming ? "Filter" : "Action");
+                String label = pages + " pages, " + (streaming ? "filter stream" : "import action") + ", ";
+                File xar = generateXar(space, pages);
+                setUploadMaxSize(2 * xar.length());
+
+                try {
+                    for (String run : new String[] {"import", "reimport"}) {
+                        resetPeakHeap();
+                        long footprint = getStorageFootprint();
+
+                        long start = System.nanoTime();
+                        if (streaming) {
+                            executeGroovy(String.format(FILTER_IMPORT_SCRIPT,
+                                xar.getAbsolutePath().replace("\\", "/")));
+                        } else {
+                            importWithAction(xar);
+                        }
+                        double seconds = elapsed(start) / 1000;
+                        Assert.assertEquals("Wrong number of pages after the " + run + " of " + label, pages,
+                            Long.parseLong(executeGroovy(String.format(COUNT_PAGES_SCRIPT, space))));
+
+                        table.set(getProfile(), label + run + " (pages/s)", pages / seconds);
+                        table.set(getProfile(), label + run + " peak heap (MB)", getServerPeakHeap() / MB);
+                        table.set(getProfile(), label + run + " storage writes (MB/s)",
+                            (getStorageFootprint() - footprint) / MB / seconds);
+                    }
+                } finally {
+                    executeGroovy(String.format(DELETE_SPACE_SCRIPT, space));
+                    xar.delete();
+                    table.write();
+                }
+            }
+        }
+    }
+
+    private void importWithAction(final File xar) throws IOException
+    {
+        consume(doUploadAsAdmin("XWiki", "XWikiPreferences", new FilePartSource(xar)));
+        try {
+            consume(doPostAsAdmin("XWiki", "XWikiPreferences", null, "import", null, new HashMap<String, String>()
+            {
+                {
+                    put("action", "import");
+                    put("name", xar.getName());
+                    put("historyStrategy", "add");
+                    put("all", "1");
+                }
+            }));
+        } finally {
+            doPostAsAdmin("XWiki", "XWikiPreferences", xar.getName(), "delattachment", null, null)
+                .releaseConnection();
+        }
+    }
+
+    /**
+     * Write a XAR without keeping it in memory.
+     *
+     * @param space the space of the pages
+     * @param pages the number of pages
+     * @return the XAR file
+     */
+    private File generateXar(String space, long pages) throws IOException
+    {
+        File xar = new File(XAR_DIRECTORY, space + ".xar");
+        xar.getParentFile().mkdirs();
+
+        Random random = new Random(pages);
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(xar)));
+        try {
+            Writer writer = new OutputStreamWriter(zip, "UTF-8");
+
+            zip.putNextEntry(new ZipEntry("package.xml"));
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<package>\n<infos>\n<name>" + space
+                + "</name>\n<description/>\n<licence/>\n<author>XWiki.Admin</author>\n<version/>\n"
+                + "<backupPack>false</backupPack>\n<preserveVersion>false</preserveVersion>\n</infos>\n<files>\n");
+            for (long i = 0; i < pages; i++) {
+                writer.write("<file defaultAction=\"0\" language=\"\">" + space + ".Page" + i + "</file>\n");
+            }
+            writer.write("</files>\n</package>\n");
+            writer.flush();
+            zip.closeEntry();
+
+            for (long i = 0; i < pages; i++) {
+                byte[] attachment = new byte[CONTENT_SIZE];
+                random.nextBytes(attachment);
+                String content = new String(Base64.encodeBase64(attachment), "US-ASCII");
+
+                zip.putNextEntry(new ZipEntry(space + "/Page" + i + ".xml"));
+                writer.write("<?xml version=\"1.1\" encoding=\"UTF-8\"?>\n<xwikidoc version=\"1.1\">\n<web>" + space
+                    + "</web>\n<name>Page" + i + "</name>\n<language/>\n<defaultLanguage/>\n"
+                    + "<translation>0</translation>\n<creator>XWiki.Admin</creator>\n<parent/>\n"
+                    + "<author>XWiki.Admin</author>\n<contentAuthor>XWiki.Admin</contentAuthor>\n"
+                    + "<version>1.1</version>\n<title>Page " + i + "</title>\n<comment/>\n"
+                    + "<minorEdit>false</minorEdit>\n<syntaxId>xwiki/2.1</syntaxId>\n<hidden>false</hidden>\n"
+                    + "<content>" + content + "</content>\n"
+                    + "<attachment>\n<filename>data.bin</filename>\n<filesize>" + CONTENT_SIZE + "</filesize>\n"
+                    + "<author>XWiki.Admin</author>\n<version>1.1</version>\n<comment/>\n<content>"
+                    + content + "</content>\n</attachment>\n</xwikidoc>\n");
+                writer.flush();
+                zip.closeEntry();
+            }
+        } finally {
+            zip.close();
+        }
+
+        return xar;
+    }
+}
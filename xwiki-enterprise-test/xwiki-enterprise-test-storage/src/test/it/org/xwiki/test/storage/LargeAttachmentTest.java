@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+import org.xwiki.test.storage.framework.GeneratedPartSource;
+import org.xwiki.test.storage.framework.StoreTestUtils;
+
+/**
+ * Upload and download attachments of several gigabytes and check that they are streamed: the content must come back
+ * intact and neither the test JVM nor the XWiki JVM may use a heap in proportion with the attachment size. Transfer
+ * rates and peak heaps are written in {@code target/benchmark/large-attachments.txt}.
+ * <p>
+ * The heap is checked on the old generation, where a buffer holding the attachment would end up while the garbage of
+ * the streams dies young: its peak during the transfers may not exceed its usage before them by more than a fixed
+ * margin, whatever the size, and may not grow from the smallest size to the largest one.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageLargeAttachmentSizes (optional): comma separated attachment sizes, e.g. "2GB,5GB"</li>
+ * <li>storageLargeAttachmentHeapMargin (optional): how much the old generation may grow during the transfers, e.g.
+ * "64MB"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class LargeAttachmentTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "LargeAttachmentTest";
+
+    private static final String FILENAME = "large.bin";
+
+    private static final double MB = 1024 * 1024;
+
+    private final long[] sizes = parseSizes(System.getProperty("storageLargeAttachmentSizes", "2GB,5GB"));
+
+    private final long heapMargin = parseSizes(System.getProperty("storageLargeAttachmentHeapMargin", "64MB"))[0];
+
+    @Test
+    public void testLargeAttachments() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("large-attachments");
+
+        long maxSize = 0;
+        for (long size : this.sizes) {
+            maxSize = Math.max(maxSize, size);
+        }
+        setUploadMaxSize(2 * maxSize);
+
+        // The growth of the old generations with the smallest and the largest size.
+        long smallestSize = Long.MAX_VALUE;
+        long[] smallestGrowth = null;
+        long largestSize = 0;
+        long[] largestGrowth = null;
+        for (long size : this.sizes) {
+            String page = "Size" + size;
+            String label = formatSize(size) + ' ';
+            GeneratedPartSource source = new GeneratedPartSource(FILENAME, size, size);
+
+            doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+            try {
+                resetPeakHeap();
+                long clientBaseline = getClientTenuredPeak();
+                long serverBaseline = getServerTenuredPeak();
+
+                long start = System.nanoTime();
+                consume(doUploadAsAdmin(SPACE, page, source));
+                table.set(getProfile(), label + "upload (MB/s)", size / MB / (elapsed(start) / 1000));
+
+                start = System.nanoTime();
+                String checksum =
+                    StoreTestUtils.getChecksum(doStreamingGetAsAdmin(SPACE, page, FILENAME, "download", null));
+                table.set(getProfile(), label + "download (MB/s)", size / MB / (elapsed(start) / 1000));
+
+                long[] growth = {getClientTenuredPeak() - clientBaseline, getServerTenuredPeak() - serverBaseline};
+                table.set(getProfile(), label + "client peak heap (MB)", getClientPeakHeap() / MB);
+                table.set(getProfile(), label + "server peak heap (MB)", getServerPeakHeap() / MB);
+                table.set(getProfile(), label + "client old generation growth (MB)", growth[0] / MB);
+                table.set(getProfile(), label + "server old generation growth (MB)", growth[1] / MB);
+                table.write();
+
+                Assert.assertEquals("Corrupted attachment", source.getChecksum(), checksum);
+                assertBounded("The test JVM buffered the " + label + "attachment", growth[0], 0);
+                assertBounded("XWiki buffered the " + label + "attachment", growth[1], 0);
+                if (size < smallestSize) {
+                    smallestSize = size;
+                    smallestGrowth = growth;
+                }
+                if (size > largestSize) {
+                    largestSize = size;
+                    largestGrowth = growth;
+                }
+            } finally {
+                doPostAsAdmin(SPACE, page, null, "delete", "confirm=1", null).releaseConnection();
+            }
+        }
+
+        if (largestSize > smallestSize) {
+            // Half the margin for the noise of the measure, the collections don't happen at the same points.
+            assertBounded("The heap of the test JVM grows with the attachment size", largestGrowth[0],
+                smallestGrowth[0] - this.heapMargin / 2);
+            assertBounded("The heap of XWiki grows with the attachment size", largestGrowth[1],
+                smallestGrowth[1] - this.heapMargin / 2);
+        }
+    }
+
+    /**
+     * @param message the message of the failure
+     * @param growth the growth of the old generation
+     * @param reference the growth it is compared with, 0 for the usage before the transfers
+     */
+    private void assertBounded(String message, long growth, long reference)
+    {
+        Assert.assertTrue(String.format("%s: the old generation grew by %.1f MB, more than %.1f MB", message,
+            growth / MB, (reference + this.heapMargin) / MB), growth < reference + this.heapMargin);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+
+/**
+ * Fill the document and attachment recycle bins with tens or hundreds of thousands of entries in each profile and
+ * measure listing them ({@code Main.AllDocs} deletedDocs and deletedAttachments views), restoring and purging them.
+ * Purging is measured both one entry per request, through the delete and delattachment actions as the recycle bin UI
+ * does, and in batches of entries per request, calling the recycle bin stores directly from a script; only a sample
+ * is purged one by one, the duration for the whole bin being extrapolated. Written in
+ * {@code target/benchmark/recycle-bin.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageRecycleBinEntries (optional): comma separated numbers of entries in each bin, e.g. "10k,500k"</li>
+ * <li>storageRecycleBinSample (optional): the number of entries restored and purged one by one</li>
+ * <li>storageRecycleBinBatch (optional): the number of entries purged by each request in batched mode</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class RecycleBinBenchmarkTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "RecycleBinBenchmark";
+
+    private static final String FILENAME = "file.txt";
+
+    /** The number of pages created and deleted by each request when filling the bins. */
+    private static final int FILL_BATCH = 1000;
+
+    private static final String FILL_SCRIPT = "def wiki = xcontext.context.wiki\n"
+        + "for (i in %d..<%d) {\n"
+        + "  def doc = xwiki.getDocument('" + SPACE + ".Page' + i)\n"
+        + "  doc.setContent('Deleted page ' + i)\n"
+        + "  doc.addAttachment('" + FILENAME + "', ('Deleted attachment ' + i).getBytes('UTF-8'))\n"
+        + "  doc.saveAsAuthor()\n"
+        + "  def xdoc = doc.document\n"
+        + "  xdoc.deleteAttachment(xdoc.getAttachment('" + FILENAME + "'), true, xcontext.context)\n"
+        + "  wiki.deleteDocument(wiki.getDocument(xdoc.documentReference, xcontext.context), true,"
+        + " xcontext.context)\n"
+        + "}";
+
+    /** Purge a batch of entries and print how many are left. */
+    private static final String PURGE_SCRIPT = "def ids = services.query.hql('select %1$s.id %2$s like :prefix')"
+        + ".bindValue('prefix', '" + SPACE + ".%%').setLimit(%3$d).execute()\n"
+        + "def store = xcontext.context.wiki.%4$s\n"
+        + "for (id in ids) {\n"
+        + "  store.deleteFromRecycleBin(id, xcontext.context, true)\n"
+        + "}\n"
+        + "print services.query.hql('select count(%1$s.id) %2$s like :prefix')"
+        + ".bindValue('prefix', '" + SPACE + ".%%').execute()[0]";
+
+    /** The alias and the query of the deleted documents, by page name. */
+    private static final String[] DOCUMENTS = {"ddoc", "from XWikiDeletedDocument as ddoc where ddoc.fullName"};
+
+    /** The alias and the query of the deleted attachments, by page name. */
+    private static final String[] ATTACHMENTS = {"datt", "from DeletedAttachment as datt where datt.docName"};
+
+    private final long[] entries = parseCounts(System.getProperty("storageRecycleBinEntries", "10k,100k,500k"));
+
+    private final int sample = Integer.getInteger("storageRecycleBinSample", 100);
+
+    private final int batch = Integer.getInteger("storageRecycleBinBatch", 1000);
+
+    @Test
+    public void benchmarkRecycleBin() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("recycle-bin");
+
+        for (long count : this.entries) {
+            String label = count + " entries, ";
+            try {
+                long start = System.nanoTime();
+                for (long from = 0; from < count; from += FILL_BATCH) {
+                    executeGroovy(String.format(FILL_SCRIPT, from, Math.min(count, from + FILL_BATCH)));
+                }
+                table.set(getProfile(), label + "fill (entries/s)", count / (elapsed(start) / 1000));
+
+                for (String view : new String[] {"deletedDocs", "deletedAttachments"}) {
+                    double[] durations = new double[REPETITIONS];
+                    for (int i = 0; i < REPETITIONS; i++) {
+                        start = System.nanoTime();
+                        consume(doPostAsAdmin("Main", "AllDocs", null, "view", "view=" + view, null));
+                        durations[i] = elapsed(start);
+                    }
+                    table.set(getProfile(), label + "list " + view + " (ms)", median(durations));
+                }
+
+                // The first pages of the sample are restored, the next ones purged one by one.
+                double[] durations = new double[this.sample];
+                for (int i = 0; i < this.sample; i++) {
+                    String page = "Page" + i;
+                    String id = getDeletedId("getDeletedDocuments('" + SPACE + '.' + page + "', '')");
+                    start = System.nanoTime();
+                    consume(doPostAsAdmin(SPACE, page, null, "undelete", "id=" + id + "&confirm=1", null));
+                    durations[i] = elapsed(start);
+                }
+                table.set(getProfile(), label + "restore document (ms)", median(durations));
+
+                for (int i = 0; i < this.sample; i++) {
+                    String page = "Page" + (this.sample + i);
+                    String id = getDeletedId("getDeletedDocuments('" + SPACE + '.' + page + "', '')");
+                    start = System.nanoTime();
+                    consume(doPostAsAdmin(SPACE, page, null, "delete", "id=" + id + "&confirm=1", null));
+                    durations[i] = elapsed(start);
+                }
+                table.set(getProfile(), label + "purge documents one by one, extrapolated (s)",
+                    median(durations) * count / 1000);
+
+                for (int i = 0; i < this.sample; i++) {
+                    String page = "Page" + (this.sample + i);
+                    String id = getDeletedId("getDeletedAttachments('" + SPACE + '.' + page + "')");
+                    start = System.nanoTime();
+                    consume(doPostAsAdmin(SPACE, page, FILENAME, "delattachment", "trashId=" + id, null));
+                    durations[i] = elapsed(start);
+                }
+                table.set(getProfile(), label + "purge attachments one by one, extrapolated (s)",
+                    median(durations) * count / 1000);
+
+                table.set(getProfile(), label + "purge documents in batches (s)",
+                    purge(DOCUMENTS, "recycleBinStore"));
+                table.set(getProfile(), label + "purge attachments in batches (s)",
+                    purge(ATTACHMENTS, "attachmentRecycleBinStore"));
+            } finally {
+                cleanUp();
+                table.write();
+            }
+        }
+    }
+
+    /**
+     * @param call the API call returning the entries of the page
+     * @return the identifier of the first entry of the page in the recycle bin
+     */
+    private String getDeletedId(String call) throws IOException
+    {
+        return executeGroovy("print xwiki." + call + "[0].id");
+    }
+
+    /**
+     * Empty the benchmark entries of a recycle bin, a batch of entries per request.
+     *
+     * @param entity the alias and the query of the entries, by page name
+     * @param store the property of the XWiki object holding the recycle bin store
+     * @return the duration in seconds
+     * @throws IOException when a batch doesn't reduce the number of entries left, e.g. when the entries belong to
+     *             another store than the one of the profile
+     */
+    private double purge(String[] entity, String store) throws IOException
+    {
+        long start = System.nanoTime();
+        long left = Long.MAX_VALUE;
+        while (left > 0) {
+            long previous = left;
+            left = Long.parseLong(executeGroovy(String.format(PURGE_SCRIPT, entity[0], entity[1], this.batch, store)));
+            if (left >= previous) {
+                throw new IOException("The " + store + " did not delete its entries, " + left + " are left");
+            }
+        }
+
+        return elapsed(start) / 1000;
+    }
+
+    private void cleanUp() throws IOException
+    {
+        // The restored pages, removed without going to the recycle bin.
+        executeGroovy("def wiki = xcontext.context.wiki\n"
+            + "for (name in services.query.xwql('where doc.space = :space').bindValue('space', '" + SPACE
+            + "').execute()) {\n"
+            + "  wiki.deleteDocument(wiki.getDocument(name, xcontext.context), false, xcontext.context)\n"
+            + "}");
+        purge(DOCUMENTS, "recycleBinStore");
+        purge(ATTACHMENTS, "attachmentRecycleBinStore");
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xwiki.test.storage.framework.AbstractBenchmarkTest;
+import org.xwiki.test.storage.framework.BenchmarkTable;
+import org.xwiki.test.storage.framework.GeneratedPartSource;
+
+/**
+ * Roll back a document holding hundreds of attachments with a deep history in each profile, where each version only
+ * changes a few attachments, and measure the rollback latency and the bytes written to the permanent directory. The
+ * rollback must only write the attachments which differ between the two versions: with the stores keeping attachments
+ * in files, the files written during the rollback are checked to belong to these attachments only (the hibernate store
+ * writes in the database files, where they can't be told apart). Written in {@code target/benchmark/rollback.txt}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageRollbackAttachments (optional): the number of attachments of the document</li>
+ * <li>storageRollbackVersions (optional): the number of versions after the one adding the attachments</li>
+ * <li>storageRollbackChanges (optional): the number of attachments changed by each version</li>
+ * <li>storageRollbackSize (optional): the size of the attachments, e.g. "64KB"</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class RollbackBenchmarkTest extends AbstractBenchmarkTest
+{
+    private static final String SPACE = "RollbackBenchmark";
+
+    private static final String PAGE = "ManyAttachments";
+
+    private static final double KB = 1024;
+
+    private final int attachments = Integer.getInteger("storageRollbackAttachments", 200);
+
+    private final int versions = Integer.getInteger("storageRollbackVersions", 50);
+
+    private final int changes = Integer.getInteger("storageRollbackChanges", 2);
+
+    private final long size = parseSizes(System.getProperty("storageRollbackSize", "64KB"))[0];
+
+    @Test
+    public void benchmarkRollback() throws Exception
+    {
+        BenchmarkTable table = BenchmarkTable.get("rollback");
+        setUploadMaxSize(2 * this.attachments * this.size);
+
+        // Version 1.1 without attachment, 2.1 with all of them, then each version changes a few of them.
+        doPostAsAdmin(SPACE, PAGE, null, "delete", "confirm=1", null).releaseConnection();
+        consume(doPostAsAdmin(SPACE, PAGE, null, "save", null, null));
+
+        try {
+            GeneratedPartSource[] sources = new GeneratedPartSource[this.attachments];
+            for (int i = 0; i < this.attachments; i++) {
+                sources[i] = new GeneratedPartSource(getFilename(i), this.size, i);
+            }
+            consume(doUploadAsAdmin(SPACE, PAGE, sources));
+            for (int version = 1; version <= this.versions; version++) {
+                consume(doUploadAsAdmin(SPACE, PAGE, getChanges(version)));
+            }
+            // One document version per upload, and one attachment version per uploaded file.
+            int attachmentVersions = this.attachments + this.versions * this.changes;
+            Assert.assertEquals("The fixture document was not fully created",
+                (this.versions + 2) + ".1 " + this.attachments + ' ' + attachmentVersions,
+                executeGroovy("def doc = xwiki.getDocument('" + SPACE + '.' + PAGE + "')\n"
+                    + "print doc.version + ' ' + doc.attachmentList.size() + ' '"
+                    + " + doc.attachmentList.sum { it.versions.length }"));
+
+            // Each rollback goes one version further back, so it only changes the attachments of one version.
+            double[] durations = new double[Math.min(REPETITIONS, this.versions)];
+            long written = 0;
+            for (int i = 0; i < durations.length; i++) {
+                int version = this.versions - i;
+                Set<String> changed = new HashSet<String>();
+                for (GeneratedPartSource source : getChanges(version)) {
+                    changed.add(source.getFileName());
+                }
+
+                written += rollback(version + 1, changed, durations, i);
+            }
+            table.set(getProfile(), "rollback one version (ms)", median(durations));
+            table.set(getProfile(), "rollback one version, written (KB)", written / KB / durations.length);
+
+            // Back to the first version holding attachments.
+            int back = this.versions - durations.length;
+            Set<String> changed = new HashSet<String>();
+            for (int version = 1; version <= back; version++) {
+                for (GeneratedPartSource source : getChanges(version)) {
+                    changed.add(source.getFileName());
+                }
+            }
+            double[] deep = new double[1];
+            written = rollback(2, changed, deep, 0);
+            table.set(getProfile(), "rollback " + back + " versions (ms)", deep[0]);
+            table.set(getProfile(), "rollback " + back + " versions, written (KB)", written / KB);
+        } finally {
+            doPostAsAdmin(SPACE, PAGE, null, "delete", "confirm=1", null).releaseConnection();
+            table.write();
+        }
+    }
+
+    /**
+     * Roll back to a version and check that only the changed attachments were written.
+     *
+     * @param major the major number of the version to go back to
+     * @param changed the names of the attachments which differ between the current version and that one
+     * @param durations where the duration is stored
+     * @param index the index of the duration
+     * @return the number of bytes of the files written during the rollback
+     */
+    private long rollback(int major, Set<String> changed, double[] durations, int index) throws Exception
+    {
+        // Leave a gap larger than the modification time resolution of the file system.
+        Thread.sleep(2000);
+        long since = System.currentTimeMillis() - 1000;
+
+        long start = System.nanoTime();
+        consume(doPostAsAdmin(SPACE, PAGE, null, "rollback", "rev=" + major + ".1&confirm=1", null));
+        durations[index] = elapsed(start);
+
+        long written = 0;
+        Set<String> touched = new HashSet<String>();
+        Collection<File> files = FileUtils.listFiles(new File(getExecutor().getExecutionDirectory(), "data"),
+            TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+        for (File file : files) {
+            if (file.lastModified() >= since) {
+                written += file.length();
+                for (int i = 0; i < this.attachments; i++) {
+                    if (file.getPath().contains(getFilename(i))) {
+                        touched.add(getFilename(i));
+                    }
+                }
+            }
+        }
+        touched.removeAll(changed);
+        Assert.assertTrue("The rollback to " + major + ".1 rewrote unchanged attachments " + touched,
+            touched.isEmpty());
+
+        return written;
+    }
+
+    /**
+     * @param version the index of the version, starting at 1 after the one adding all the attachments
+     * @return the new contents of the attachments changed by this version
+     */
+    private GeneratedPartSource[] getChanges(int version)
+    {
+        GeneratedPartSource[] sources = new GeneratedPartSource[this.changes];
+        for (int i = 0; i < this.changes; i++) {
+            int attachment = ((version - 1) * this.changes + i) % this.attachments;
+            sources[i] =
+                new GeneratedPartSource(getFilename(attachment), this.size, (long) version * this.attachments + i);
+        }
+
+        return sources;
+    }
+
+    private String getFilename(int attachment)
+    {
+        return String.format("attachment%04d.bin", attachment);
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Assume;
+import org.junit.Before;
+
+/**
+ * To be extended by the storage benchmarks. They only run when the "storageBenchmark" System Property is true, since
+ * they take much longer than the correctness tests, and they report their figures in a {@link BenchmarkTable}.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageBenchmark: set to true to run the benchmarks</li>
+ * <li>storageBenchmarkRepetitions (optional): how many times each measure is repeated, the median is reported</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public abstract class AbstractBenchmarkTest extends AbstractTest
+{
+    /** How many times each measure is repeated. */
+    protected static final int REPETITIONS = Integer.getInteger("storageBenchmarkRepetitions", 3);
+
+    private static final long KB = 1024;
+
+    /** A count, see {@link #parseCounts(String)}. */
+    private static final Pattern COUNT = Pattern.compile("(\\d+)([kM]?)");
+
+    /** The names of the heap pools of the young generation, e.g. "PS Eden Space" or "G1 Survivor Space". */
+    private static final String YOUNG_POOLS = ".*(Eden|Survivor).*";
+
+    /**
+     * What the preview renders instead of the output of {@link #executeGroovy(String)} when the script throws: the
+     * request itself succeeds.
+     */
+    private static final String GROOVY_ERROR = "Failed to execute the [groovy] macro";
+
+    /**
+     * The benchmarks are skipped by the regular builds, which only run the correctness tests of the storage module.
+     */
+    @Before
+    public void skipUnlessStorageBenchmark()
+    {
+        Assume.assumeTrue(Boolean.getBoolean("storageBenchmark"));
+    }
+
+    /**
+     * Parse sizes like "1KB", "10MB" or "1GB".
+     *
+     * @param sizes comma separated sizes
+     * @return the sizes in bytes
+     */
+    protected static long[] parseSizes(String sizes)
+    {
+        String[] values = sizes.trim().split("\\s*,\\s*");
+        long[] bytes = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            String value = values[i].toUpperCase();
+            long unit = 1;
+            if (value.endsWith("GB")) {
+                unit = KB * KB * KB;
+            } else if (value.endsWith("MB")) {
+                unit = KB * KB;
+            } else if (value.endsWith("KB")) {
+                unit = KB;
+            }
+            bytes[i] = Long.parseLong(value.replaceAll("[^0-9]", "")) * unit;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Parse counts like "500", "10k" or "2M", in thousands and millions rather than in multiples of 1024.
+     *
+     * @param counts comma separated counts
+     * @return the counts
+     * @throws IllegalArgumentException if a count is not a positive number with an optional k or M suffix, so that a
+     *             size given by mistake (e.g. "10KB") is not read as another count
+     */
+    protected static long[] parseCounts(String counts)
+    {
+        String[] values = counts.trim().split("\\s*,\\s*");
+        long[] numbers = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            Matcher matcher = COUNT.matcher(values[i]);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid count [" + values[i] + "] in [" + counts + "]");
+            }
+            long unit = 1;
+            if ("k".equals(matcher.group(2))) {
+                unit = 1000;
+            } else if ("M".equals(matcher.group(2))) {
+                unit = 1000000;
+            }
+            numbers[i] = Long.parseLong(matcher.group(1)) * unit;
+            if (numbers[i] <= 0) {
+                throw new IllegalArgumentException("Invalid count [" + values[i] + "] in [" + counts + "]");
+            }
+        }
+
+        return numbers;
+    }
+
+    /**
+     * @param bytes a number of bytes
+     * @return the number in the largest unit it is a multiple of, e.g. "10 MB"
+     */
+    protected static String formatSize(long bytes)
+    {
+        String[] units = {"B", "KB", "MB", "GB"};
+        long value = bytes;
+        int unit = 0;
+        while (unit < units.length - 1 && value >= KB && value % KB == 0) {
+            value /= KB;
+            unit++;
+        }
+
+        return value + " " + units[unit];
+    }
+
+    /**
+     * @param durations the durations of the repetitions of a measure, left untouched
+     * @return their median, the mean of the two middle ones when {@link #REPETITIONS} is even
+     */
+    protected static double median(double[] durations)
+    {
+        double[] sorted = durations.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    /**
+     * @param start the value of {@link System#nanoTime()} at the beginning of the measure
+     * @return the milliseconds elapsed since then
+     */
+    protected static double elapsed(long start)
+    {
+        return (System.nanoTime() - start) / 1000000D;
+    }
+
+    /**
+     * Read the whole response without keeping it, release the connection and check the status.
+     *
+     * @param method the executed request
+     * @return the number of bytes read
+     * @throws IOException when the server answered with an error
+     */
+    protected static long consume(HttpMethod method) throws IOException
+    {
+        try {
+            InputStream body = method.getResponseBodyAsStream();
+            long read = body == null ? 0 : IOUtils.copyLarge(body, new NullOutputStream());
+            if (method.getStatusCode() >= 400) {
+                throw new IOException("Request [" + method.getURI() + "] failed with status "
+                    + method.getStatusCode());
+            }
+
+            return read;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Allow uploads up to the given size, the default limit is much lower than what the benchmarks upload.
+     *
+     * @param maxSize the maximum upload size, in bytes
+     * @throws IOException on connection errors
+     */
+    protected void setUploadMaxSize(long maxSize) throws IOException
+    {
+        executeGroovy("def preferences = xwiki.getDocument('XWiki.XWikiPreferences')\n"
+            + "preferences.getObject('XWiki.XWikiPreferences').set('upload_maxsize', " + maxSize + "L)\n"
+            + "preferences.saveAsAuthor()");
+    }
+
+    /**
+     * Execute a Groovy script with programming rights, using the preview action.
+     *
+     * @param script the script, without the groovy macro markup
+     * @return the plain text output of the script
+     * @throws IOException on connection errors or when the script fails
+     */
+    protected String executeGroovy(final String script) throws IOException
+    {
+        HttpMethod method = doPostAsAdmin("Main", "WebHome", null, "preview", "xpage=plain&outputSyntax=plain",
+            new HashMap<String, String>()
+            {
+                {
+                    put("content", "{{groovy}}\n" + script + "\n{{/groovy}}");
+                }
+            });
+        try {
+            if (method.getStatusCode() >= 400) {
+                throw new IOException("Script failed with status " + method.getStatusCode());
+            }
+
+            String output = new String(method.getResponseBody(), "UTF-8").trim();
+            // The content previewed is the macro alone, so a failed script leaves nothing but the error.
+            if (output.startsWith(GROOVY_ERROR)) {
+                throw new IOException("Script failed: " + output);
+            }
+
+            return output;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Reset the peak heap usage of the test JVM and of the XWiki JVM.
+     *
+     * @throws IOException on connection errors
+     */
+    protected void resetPeakHeap() throws IOException
+    {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+
+        executeGroovy("System.gc()\n"
+            + "java.lang.management.ManagementFactory.getMemoryPoolMXBeans().each {\n"
+            + "  if (it.type == java.lang.management.MemoryType.HEAP) { it.resetPeakUsage() }\n"
+            + "}");
+    }
+
+    /**
+     * @return the peak heap usage of the test JVM since {@link #resetPeakHeap()}, in bytes, as the sum of the peaks of
+     *         the heap pools, so an upper bound
+     */
+    protected static long getClientPeakHeap()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    /**
+     * @return the peak heap usage of the XWiki JVM since {@link #resetPeakHeap()}, in bytes, as the sum of the peaks
+     *         of the heap pools, so an upper bound
+     * @throws IOException on connection errors
+     */
+    protected long getServerPeakHeap() throws IOException
+    {
+        return Long.parseLong(executeGroovy("long peak = 0\n"
+            + "java.lang.management.ManagementFactory.getMemoryPoolMXBeans().each {\n"
+            + "  if (it.type == java.lang.management.MemoryType.HEAP) { peak += it.peakUsage.used }\n"
+            + "}\n"
+            + "print peak"));
+    }
+
+    /**
+     * @return the peak usage of the old generation of the test JVM since {@link #resetPeakHeap()}, in bytes: unlike
+     *         {@link #getClientPeakHeap()}, the garbage of a stream, which dies young, doesn't count while a buffer
+     *         holding a whole attachment does
+     */
+    protected static long getClientTenuredPeak()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && !pool.getName().matches(YOUNG_POOLS)) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return peak;
+    }
+
+    /**
+     * @return the peak usage of the old generation of the XWiki JVM since {@link #resetPeakHeap()}, in bytes, see
+     *         {@link #getClientTenuredPeak()}
+     * @throws IOException on connection errors
+     */
+    protected long getServerTenuredPeak() throws IOException
+    {
+        return Long.parseLong(executeGroovy("long peak = 0\n"
+            + "java.lang.management.ManagementFactory.getMemoryPoolMXBeans().each {\n"
+            + "  if (it.type == java.lang.management.MemoryType.HEAP && !(it.name ==~ /" + YOUNG_POOLS + "/)) {\n"
+            + "    peak += it.peakUsage.used\n"
+            + "  }\n"
+            + "}\n"
+            + "print peak"));
+    }
+
+    /**
+     * @return the CPU time used by the XWiki JVM since it started, in nanoseconds
+     * @throws IOException on connection errors
+     */
+    protected long getServerCpuTime() throws IOException
+    {
+        return Long.parseLong(
+            executeGroovy("print java.lang.management.ManagementFactory.operatingSystemMXBean.processCpuTime"));
+    }
+
+    /**
+     * @return the size of the permanent directory of the XWiki instance, which holds both the database and the
+     *         attachment files of the jetty/hsqldb distribution, in bytes
+     */
+    protected long getStorageFootprint()
+    {
+        return FileUtils.sizeOfDirectory(new File(getExecutor().getExecutionDirectory(), "data"));
+    }
+}
@@ -21,13 +21,18 @@
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+import org.junit.AfterClass;
 import org.junit.Rule;
 import org.junit.rules.TestName;
 import org.xwiki.test.integration.XWikiExecutor;
+import org.xwiki.test.storage.profiles.Profile;
 import org.xwiki.test.ui.TestUtils;
 
 /**
@@ -38,28 +43,86 @@
  */
 public class AbstractTest
 {
-    private static XWikiExecutor executor;
+    /**
+     * The profiles run in parallel, each in its own thread: the executor and profile are those of the current thread.
+     * Inheritable so that the threads started by the tests (e.g. for timeouts) see them too.
+     */
+    private static final ThreadLocal<XWikiExecutor> EXECUTOR = new InheritableThreadLocal<XWikiExecutor>();
+
+    private static final ThreadLocal<Profile> PROFILE = new InheritableThreadLocal<Profile>();
+
+    /**
+     * Cached secret tokens of the admin, by port, shared by the tests since the connections keep their session. TODO
+     * cache for each user.
+     */
+    private static final Map<Short, String> SECRET_TOKENS = new ConcurrentHashMap<Short, String>();
 
     @Rule
     public TestName testName = new TestName();
 
-    /** Cached secret token. TODO cache for each user. */
-    private String secretToken = null;
-
-    /** Used so that AllTests can set the executor. */
+    /** Used so that AllTests can set the executor of the current profile. */
     public static void setExecutor(final XWikiExecutor executor)
     {
-        AbstractTest.executor = executor;
+        EXECUTOR.set(executor);
+    }
+
+    /**
+     * Used so that AllTests can tell which configuration profile is being tested.
+     *
+     * @since 9.5RC1
+     */
+    public static void setProfile(final Profile profile)
+    {
+        PROFILE.set(profile);
+    }
+
+    /**
+     * @return the configuration profile XWiki was started with
+     * @since 9.5RC1
+     */
+    protected Profile getProfile()
+    {
+        return PROFILE.get();
+    }
+
+    /**
+     * @return the configuration profile of the current thread, for the framework classes which are not tests
+     * @since 9.5RC1
+     */
+    static Profile getCurrentProfile()
+    {
+        return PROFILE.get();
+    }
+
+    /**
+     * Write the request durations measured so far, see {@link RequestTimes}.
+     *
+     * @since 9.5RC1
+     */
+    @AfterClass
+    public static void writeRequestTimes() throws IOException
+    {
+        RequestTimes.write();
+    }
+
+    /**
+     * @return the executor running the XWiki instance of the current profile
+     * @since 9.5RC1
+     */
+    protected XWikiExecutor getExecutor()
+    {
+        return EXECUTOR.get();
     }
 
     protected short getPort()
     {
-        return (short) executor.getPort();
+        return (short) EXECUTOR.get().getPort();
     }
 
     protected String getAddressPrefix()
     {
-        return TestUtils.BASE_BIN_URL;
+        // Each profile has its own port.
+        return XWikiExecutor.URL + ':' + getPort() + "/xwiki/bin/";
     }
 
     protected String getTestMethodName()
@@ -74,6 +137,18 @@ protected HttpMethod doPostAsAdmin(final String space, final String page, final
         return StoreTestUtils.doPost(url, TestUtils.ADMIN_CREDENTIALS, postParameters);
     }
 
+    /**
+     * The response is not read, see {@link StoreTestUtils#doStreamingGet}.
+     *
+     * @since 9.5RC1
+     */
+    protected HttpMethod doStreamingGetAsAdmin(final String space, final String page, final String filename,
+        final String action, final String query, final Header... headers) throws IOException
+    {
+        String url = getURL(space, page, filename, action, addBasicauth(query));
+        return StoreTestUtils.doStreamingGet(url, TestUtils.ADMIN_CREDENTIALS, headers);
+    }
+
     public HttpMethod doUploadAsAdmin(final String space, final String page, final Map<String, byte[]> uploads)
         throws IOException
     {
@@ -81,6 +156,14 @@ public HttpMethod doUploadAsAdmin(final String space, final String page, final M
         return StoreTestUtils.doUpload(url, TestUtils.ADMIN_CREDENTIALS, uploads);
     }
 
+    /** @since 9.5RC1 */
+    public HttpMethod doUploadAsAdmin(final String space, final String page, final PartSource... uploads)
+        throws IOException
+    {
+        String url = getURL(space, page, null, "upload", addBasicauth(null));
+        return StoreTestUtils.doUpload(url, TestUtils.ADMIN_CREDENTIALS, uploads);
+    }
+
     /**
      * Adds basicauth=1 to the query string.
      * 
@@ -148,7 +231,8 @@ protected String getURL(String space, String page, String filename, String actio
      */
     protected String getSecretToken()
     {
-        if (this.secretToken == null) {
+        String secretToken = SECRET_TOKENS.get(getPort());
+        if (secretToken == null) {
             String body = null;
             try {
                 body =
@@ -156,8 +240,9 @@ protected String getSecretToken()
                         "UTF-8");
                 Matcher matcher = Pattern.compile("<input[^>]+form_token[^>]+value=('|\")([^'\"]+)").matcher(body);
                 if (matcher.find() && matcher.groupCount() == 2) {
-                    this.secretToken = matcher.group(2);
-                    return this.secretToken;
+                    secretToken = matcher.group(2);
+                    SECRET_TOKENS.put(getPort(), secretToken);
+                    return secretToken;
                 }
             } catch (IOException exception) {
                 exception.printStackTrace();
@@ -169,6 +254,16 @@ protected String getSecretToken()
             return "";
         }
 
-        return this.secretToken;
+        return secretToken;
+    }
+
+    /**
+     * Forget the cached secret token, which is not valid anymore once XWiki restarted.
+     *
+     * @since 9.5RC1
+     */
+    protected void clearSecretToken()
+    {
+        SECRET_TOKENS.remove(getPort());
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.xwiki.test.storage.profiles.ForEachProfileSuite;
+import org.xwiki.test.storage.profiles.Profile;
+
+/**
+ * Benchmark figures with one row per measure and one column per configuration profile. Since all the profiles run in
+ * the same JVM, the table is filled by each profile in turn and rewritten after each one, in
+ * {@code target/benchmark/<name>.csv} and {@code .txt}.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public final class BenchmarkTable
+{
+    private static final String DIRECTORY = "target/benchmark";
+
+    private static final Map<String, BenchmarkTable> TABLES = new HashMap<String, BenchmarkTable>();
+
+    private final String name;
+
+    private final List<String> profiles = new ArrayList<String>();
+
+    private final Map<String, Map<String, String>> rows = new LinkedHashMap<String, Map<String, String>>();
+
+    private BenchmarkTable(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * @param name the name of the table, used as file name
+     * @return the table, created on first call
+     */
+    public static synchronized BenchmarkTable get(String name)
+    {
+        BenchmarkTable table = TABLES.get(name);
+        if (table == null) {
+            table = new BenchmarkTable(name);
+            TABLES.put(name, table);
+        }
+
+        return table;
+    }
+
+    /**
+     * @param profile the profile
+     * @return the name of the profile as displayed in the tables
+     */
+    public static String getName(Profile profile)
+    {
+        return ForEachProfileSuite.getProfileName(profile.getClass());
+    }
+
+    /**
+     * Set a cell of the table.
+     *
+     * @param profile the profile measured
+     * @param measure the name of the measure
+     * @param value the value, formatted with two decimals
+     */
+    public void set(Profile profile, String measure, double value)
+    {
+        set(profile, measure, String.format(Locale.ROOT, "%.2f", value));
+    }
+
+    /**
+     * Set a cell of the table.
+     *
+     * @param profile the profile measured
+     * @param measure the name of the measure
+     * @param value the value, e.g. "failed"
+     */
+    public synchronized void set(Profile profile, String measure, String value)
+    {
+        String profileName = getName(profile);
+        if (!this.profiles.contains(profileName)) {
+            this.profiles.add(profileName);
+        }
+
+        Map<String, String> row = this.rows.get(measure);
+        if (row == null) {
+            row = new HashMap<String, String>();
+            this.rows.put(measure, row);
+        }
+        row.put(profileName, value);
+    }
+
+    /**
+     * Write the table files and print the table on the console.
+     *
+     * @throws IOException when the files cannot be written
+     */
+    public synchronized void write() throws IOException
+    {
+        List<List<String>> lines = new ArrayList<List<String>>();
+        List<String> header = new ArrayList<String>();
+        header.add(this.name);
+        header.addAll(this.profiles);
+        lines.add(header);
+        for (Map.Entry<String, Map<String, String>> row : this.rows.entrySet()) {
+            List<String> line = new ArrayList<String>();
+            line.add(row.getKey());
+            for (String profile : this.profiles) {
+                line.add(StringUtils.defaultString(row.getValue().get(profile), "-"));
+            }
+            lines.add(line);
+        }
+
+        int[] widths = new int[header.size()];
+        StringBuilder csv = new StringBuilder();
+        for (List<String> line : lines) {
+            csv.append(StringUtils.join(line, ',')).append('\n');
+            for (int i = 0; i < widths.length; i++) {
+                widths[i] = Math.max(widths[i], line.get(i).length());
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (List<String> line : lines) {
+            text.append(StringUtils.rightPad(line.get(0), widths[0]));
+            for (int i = 1; i < widths.length; i++) {
+                text.append("  ").append(StringUtils.leftPad(line.get(i), widths[i]));
+            }
+            text.append('\n');
+        }
+
+        FileUtils.writeStringToFile(new File(DIRECTORY, this.name + ".csv"), csv.toString(), "UTF-8");
+        FileUtils.writeStringToFile(new File(DIRECTORY, this.name + ".txt"), text.toString(), "UTF-8");
+        System.out.println(text);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage.framework;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+
+/**
+ * Upload content generated on the fly, so that attachments much larger than the test JVM heap can be uploaded. The
+ * same seed always generates the same bytes, so the content can be checked after download without being kept.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class GeneratedPartSource implements PartSource
+{
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final String fileName;
+
+    private final long length;
+
+    private final long seed;
+
+    /**
+     * @param fileName the name of the uploaded file
+     * @param length the number of bytes to generate
+     * @param seed the seed of the random generator
+     */
+    public GeneratedPartSource(String fileName, long length, long seed)
+    {
+        this.fileName = fileName;
+        this.length = length;
+        this.seed = seed;
+    }
+
+    @Override
+    public long getLength()
+    {
+        return this.length;
+    }
+
+    @Override
+    public String getFileName()
+    {
+        return this.fileName;
+    }
+
+    @Override
+    public InputStream createInputStream()
+    {
+        return new InputStream()
+        {
+            private final Random random = new Random(seed);
+
+            /** Generated by blocks so that the content does not depend on how it is read. */
+            private final byte[] block = new byte[BLOCK_SIZE];
+
+            private int blockPosition = BLOCK_SIZE;
+
+            private long remaining = length;
+
+            @Override
+            public int read()
+            {
+                byte[] buffer = new byte[1];
+
+                return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count)
+            {
+                if (this.remaining <= 0) {
+                    return -1;
+                }
+                if (this.blockPosition == BLOCK_SIZE) {
+                    this.random.nextBytes(this.block);
+                    this.blockPosition = 0;
+                }
+
+                int read = (int) Math.min(Math.min(count, this.remaining), BLOCK_SIZE - this.blockPosition);
+                System.arraycopy(this.block, this.blockPosition, buffer, offset, read);
+                this.blockPosition += read;
+                this.remaining -= read;
+
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Generate the content once more to compute its checksum.
+     *
+     * @return the checksum of the generated content, see {@link StoreTestUtils#getChecksum(InputStream)}
+     * @throws IOException should not happen
+     */
+    public String getChecksum() throws IOException
+    {
+        return StoreTestUtils.getChecksum(createInputStream());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage.framework;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.lang.StringUtils;
+import org.xwiki.test.storage.profiles.Profile;
+
+/**
+ * Times the requests of the storage tests by profile and action, so that the correctness tests double as a
+ * micro-benchmark of the stores. The durations exclude the client setup since the connections are pooled, and are
+ * written in {@code target/benchmark/requests.txt} after each test class.
+ * <p>
+ * The following configuration properties are supported (set in maven):
+ * <ul>
+ * <li>storageRequestTimes: set to true to time the requests</li>
+ * </ul>
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public final class RequestTimes implements RequestListener
+{
+    private static final boolean ENABLED = Boolean.getBoolean("storageRequestTimes");
+
+    private static final RequestTimes INSTANCE = new RequestTimes();
+
+    private static boolean started;
+
+    /** The number of requests, total and maximum durations of each action of each profile. */
+    private final Map<Profile, Map<String, long[]>> times = new HashMap<Profile, Map<String, long[]>>();
+
+    private RequestTimes()
+    {
+        // Singleton.
+    }
+
+    /**
+     * Start timing the requests, if they are to be timed. Can be called several times.
+     */
+    public static synchronized void start()
+    {
+        if (ENABLED && !started) {
+            StoreTestUtils.addRequestListener(INSTANCE);
+            started = true;
+        }
+    }
+
+    @Override
+    public synchronized void requestExecuted(HttpMethod method, long duration)
+    {
+        Profile profile = AbstractTest.getCurrentProfile();
+        if (profile == null) {
+            return;
+        }
+
+        String action;
+        try {
+            // The paths are /xwiki/bin/<action>/<space>/<page>.
+            action = StringUtils.substringBefore(StringUtils.substringAfter(method.getURI().getPath(), "/bin/"), "/");
+        } catch (URIException e) {
+            action = "unknown";
+        }
+
+        Map<String, long[]> actions = this.times.get(profile);
+        if (actions == null) {
+            actions = new HashMap<String, long[]>();
+            this.times.put(profile, actions);
+        }
+        long[] time = actions.get(action);
+        if (time == null) {
+            time = new long[3];
+            actions.put(action, time);
+        }
+        time[0]++;
+        time[1] += duration;
+        time[2] = Math.max(time[2], duration);
+    }
+
+    /**
+     * Write the durations measured so far, if the requests are timed.
+     *
+     * @throws IOException when the table can't be written
+     */
+    public static void write() throws IOException
+    {
+        if (ENABLED) {
+            INSTANCE.writeTable();
+        }
+    }
+
+    private synchronized void writeTable() throws IOException
+    {
+        BenchmarkTable table = BenchmarkTable.get("requests");
+        for (Map.Entry<Profile, Map<String, long[]>> profile : this.times.entrySet()) {
+            for (Map.Entry<String, long[]> action : profile.getValue().entrySet()) {
+                long[] time = action.getValue();
+                table.set(profile.getKey(), action.getKey() + " requests", time[0]);
+                table.set(profile.getKey(), action.getKey() + " mean (ms)", time[1] / 1000000D / time[0]);
+                table.set(profile.getKey(), action.getKey() + " max (ms)", time[2] / 1000000D);
+            }
+        }
+        table.write();
+    }
+}
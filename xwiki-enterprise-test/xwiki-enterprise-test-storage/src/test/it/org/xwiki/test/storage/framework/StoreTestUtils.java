@@ -20,19 +20,32 @@
 package org.xwiki.test.storage.framework;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
 
 /**
  * Test saving and downloading of attachments.
@@ -42,6 +55,35 @@
  */
 public final class StoreTestUtils
 {
+    /**
+     * Shared by all the tests and the threads they start, so that the connections are kept alive and reused instead of
+     * measuring the TCP setup. The requests read their response in memory and give their connection back before
+     * returning, except {@link #doStreamingGet(String, UsernamePasswordCredentials, Header...)} whose callers must call
+     * {@link HttpMethod#releaseConnection()}. A leaked connection makes the requests fail after
+     * {@link #CONNECTION_TIMEOUT} instead of hanging.
+     */
+    private static final HttpClient CLIENT;
+
+    /** How long, in milliseconds, a request waits for a free connection in the pool. */
+    private static final long CONNECTION_TIMEOUT = 60000;
+
+    /**
+     * The cookies (session) and credentials of each user, by user name and port: the cookies don't depend on the port,
+     * so the instances tested in parallel, on the same host, would otherwise overwrite each other's session.
+     */
+    private static final ConcurrentMap<String, HttpState> STATES = new ConcurrentHashMap<String, HttpState>();
+
+    private static final List<RequestListener> LISTENERS = new CopyOnWriteArrayList<RequestListener>();
+
+    static {
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(64);
+        connectionManager.getParams().setMaxTotalConnections(256);
+        CLIENT = new HttpClient(connectionManager);
+        CLIENT.getParams().setAuthenticationPreemptive(true);
+        CLIENT.getParams().setConnectionManagerTimeout(CONNECTION_TIMEOUT);
+    }
+
     public static String getPageAsString(final String address) throws IOException
     {
         final HttpMethod ret = doPost(address, null, null);
@@ -52,46 +94,175 @@ public static String getPageAsString(final String address) throws IOException
     public static HttpMethod doPost(final String address, final UsernamePasswordCredentials userNameAndPassword,
         final Map<String, String> parameters) throws IOException
     {
-        final HttpClient client = new HttpClient();
         final PostMethod method = new PostMethod(address);
 
-        if (userNameAndPassword != null) {
-            client.getState().setCredentials(AuthScope.ANY, userNameAndPassword);
-            client.getParams().setAuthenticationPreemptive(true);
-        }
-
         if (parameters != null) {
             for (Map.Entry<String, String> e : parameters.entrySet()) {
                 method.addParameter(e.getKey(), e.getValue());
             }
         }
-        client.executeMethod(method);
+        executeAndRead(method, userNameAndPassword);
         return method;
     }
 
-    public static HttpMethod doUpload(final String address, final UsernamePasswordCredentials userNameAndPassword,
-        final Map<String, byte[]> uploads) throws IOException
+    /**
+     * Do a get request with additional headers, e.g. a {@code Range} header, without reading the response: the large
+     * attachments are downloaded from {@link HttpMethod#getResponseBodyAsStream()} instead of being kept in memory.
+     * The caller must release the connection with {@link HttpMethod#releaseConnection()}.
+     *
+     * @since 9.5RC1
+     */
+    public static HttpMethod doStreamingGet(final String address, final UsernamePasswordCredentials userNameAndPassword,
+        final Header... headers) throws IOException
     {
-        final HttpClient client = new HttpClient();
-        final PostMethod method = new PostMethod(address);
+        final GetMethod method = new GetMethod(address);
 
-        if (userNameAndPassword != null) {
-            client.getState().setCredentials(AuthScope.ANY, userNameAndPassword);
-            client.getParams().setAuthenticationPreemptive(true);
+        for (Header header : headers) {
+            method.addRequestHeader(header);
         }
+        execute(method, userNameAndPassword);
+        return method;
+    }
 
-        Part[] parts = new Part[uploads.size()];
+    public static HttpMethod doUpload(final String address, final UsernamePasswordCredentials userNameAndPassword,
+        final Map<String, byte[]> uploads) throws IOException
+    {
+        PartSource[] sources = new PartSource[uploads.size()];
         int i = 0;
         for (Map.Entry<String, byte[]> e : uploads.entrySet()) {
-            parts[i++] = new FilePart("filepath", new ByteArrayPartSource(e.getKey(), e.getValue()));
+            sources[i++] = new ByteArrayPartSource(e.getKey(), e.getValue());
+        }
+
+        return doUpload(address, userNameAndPassword, sources);
+    }
+
+    /**
+     * Upload files read from their sources while they are sent, so that they don't need to fit in memory. The upload
+     * action looks the files up by field name, so each file gets its own field: filepath, filepath_1, filepath_2...
+     *
+     * @since 9.5RC1
+     */
+    public static HttpMethod doUpload(final String address, final UsernamePasswordCredentials userNameAndPassword,
+        final PartSource... sources) throws IOException
+    {
+        final PostMethod method = new PostMethod(address);
+
+        Part[] parts = new Part[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            parts[i] = new FilePart(i == 0 ? "filepath" : "filepath_" + i, sources[i]);
         }
         MultipartRequestEntity entity = new MultipartRequestEntity(parts, method.getParams());
         method.setRequestEntity(entity);
 
-        client.executeMethod(method);
+        executeAndRead(method, userNameAndPassword);
         return method;
     }
 
+    /**
+     * Execute a request and read its response in memory, so that its connection goes back to the pool.
+     *
+     * @since 9.5RC1
+     */
+    private static void executeAndRead(final HttpMethod method, final UsernamePasswordCredentials userNameAndPassword)
+        throws IOException
+    {
+        try {
+            execute(method, userNameAndPassword);
+            method.getResponseBody();
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Execute a request with the shared client, in the context of the given user, and notify the listeners.
+     *
+     * @since 9.5RC1
+     */
+    private static void execute(final HttpMethod method, final UsernamePasswordCredentials userNameAndPassword)
+        throws IOException
+    {
+        HttpState state;
+        if (userNameAndPassword == null) {
+            // Guests don't share their session.
+            state = new HttpState();
+        } else {
+            String key = userNameAndPassword.getUserName() + ':' + method.getURI().getPort();
+            state = STATES.get(key);
+            if (state == null) {
+                state = new HttpState();
+                state.setCredentials(AuthScope.ANY, userNameAndPassword);
+                HttpState existing = STATES.putIfAbsent(key, state);
+                state = existing != null ? existing : state;
+            }
+        }
+
+        long start = System.nanoTime();
+        CLIENT.executeMethod(null, method, state);
+        long duration = System.nanoTime() - start;
+        for (RequestListener listener : LISTENERS) {
+            listener.requestExecuted(method, duration);
+        }
+    }
+
+    /**
+     * @param listener notified after each request
+     * @since 9.5RC1
+     */
+    public static void addRequestListener(final RequestListener listener)
+    {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * @param listener the listener to stop notifying
+     * @since 9.5RC1
+     */
+    public static void removeRequestListener(final RequestListener listener)
+    {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Compute the SHA-256 checksum of a stream, read without being kept in memory. The stream is closed.
+     *
+     * @param stream the stream to read
+     * @return the checksum, in hexadecimal
+     * @since 9.5RC1
+     */
+    public static String getChecksum(final InputStream stream) throws IOException
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            for (int read = stream.read(buffer); read >= 0; read = stream.read(buffer)) {
+                digest.update(buffer, 0, read);
+            }
+
+            return String.format("%064x", new BigInteger(1, digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            // should not happen
+            throw new RuntimeException(e);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Download a response body without keeping it in memory.
+     *
+     * @return the SHA-256 checksum of the body, see {@link #getChecksum(InputStream)}
+     * @since 9.5RC1
+     */
+    public static String getChecksum(final HttpMethod method) throws IOException
+    {
+        try {
+            return getChecksum(method.getResponseBodyAsStream());
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
     /**
      * Encodes a given string so that it may be used as a URL component. Compatable with javascript decodeURIComponent,
      * though more strict than encodeURIComponent: all characters except [a-zA-Z0-9], '.', '-', '*', '_' are converted
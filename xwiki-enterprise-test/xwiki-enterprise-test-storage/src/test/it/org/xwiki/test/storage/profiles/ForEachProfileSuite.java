@@ -19,18 +19,32 @@
  */
 package org.xwiki.test.storage.profiles;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 
 import org.junit.extensions.cpsuite.ClassTester;
 import org.junit.extensions.cpsuite.ClasspathClassesFinder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.extensions.cpsuite.ClasspathSuite;
+import org.junit.runner.Description;
 import org.junit.runner.Runner;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
 import org.junit.runner.notification.RunNotifier;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.RunnerBuilder;
@@ -41,6 +55,15 @@
  * Run all tests in multiple configuration profiles and start/stop XWiki for each profile. Run all tests found in the
  * current classloader using <a href="http://www.johanneslink.net/projects/cpsuite.jsp">cpsuite</a> (we extend it).
  * Tests can be filtered by passing the "pattern" System Property.
+ * <p>
+ * Each profile runs on its own XWiki instance, the instances of the profiles after the first one running in copies of
+ * the execution directory prepared by maven. The profiles run in parallel, except when the storage benchmarks are
+ * enabled, when the instances share a database server (the "storageDatabase" System Property) or when the
+ * "storageParallelProfiles" System Property is false. Each profile has its own suite in the description of this
+ * runner, named after the profile, and its tests are reported with the profile name in brackets, e.g.
+ * "testRollback [FilesystemAttachmentStorage]", so the test reports (e.g. surefire's) tell the profiles apart. The
+ * profiles to run can be chosen with the "storageProfiles" System Property, a comma separated list of profile names
+ * (the class names without the "Profile" suffix).
  * 
  * @version $Id$
  * @since 3.0RC1
@@ -49,6 +72,12 @@ public class ForEachProfileSuite extends ClasspathSuite
 {
     public static final String PATTERN = ".*" + System.getProperty("pattern", "");
 
+    /** Written in the copies of the execution directory, to know which webapp they were copied with. */
+    private static final String COPY_MARKER = ".storage-profile-copy";
+
+    /** The selected profile classes, sorted by name. */
+    private List<Class< ? >> profiles;
+
     public ForEachProfileSuite(Class< ? > klass, RunnerBuilder builder) throws InitializationError
     {
         super(klass, builder);
@@ -69,18 +98,39 @@ protected List<Runner> getChildren()
         return runners;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * One suite per profile, named after the profile, holding the tests of the profile.
+     */
     @Override
-    public void run(RunNotifier notifier)
+    public Description getDescription()
     {
-        // Get the list of test profiles.
-        final List<Class< ? >> profiles =
-            new ClasspathClassesFinder(IsProfileTester.INSTANCE, "java.class.path").find();
+        Description tests = super.getDescription();
+        Description description = Description.createSuiteDescription(tests.getDisplayName(),
+            tests.getAnnotations().toArray(new Annotation[0]));
+        for (Class< ? > profile : getProfiles()) {
+            description.addChild(getProfileDescription(tests, getProfileName(profile)));
+        }
+
+        return description;
+    }
 
-        final Map<Profile, XWikiExecutor> executorByProfile = new HashMap<Profile, XWikiExecutor>();
+    @Override
+    public void run(final RunNotifier notifier)
+    {
+        // Each profile gets its own executor (port, stop port and execution directory) so that they can run in
+        // parallel. The execution directories of the other executors are copies of the one prepared by maven.
+        final List<Class< ? >> profiles = getProfiles();
+        final Map<Profile, XWikiExecutor> executorByProfile = new LinkedHashMap<Profile, XWikiExecutor>();
+        final File executionDirectory = new File(new XWikiExecutor(0).getExecutionDirectory());
         for (int i = 0; i < profiles.size(); i++) {
             try {
-                // All executors are #0 because they will not be run in parallel.
-                executorByProfile.put(((Class<Profile>) profiles.get(i)).newInstance(), new XWikiExecutor(0));
+                XWikiExecutor executor = new XWikiExecutor(i);
+                if (i > 0) {
+                    copyExecutionDirectory(executionDirectory, new File(executor.getExecutionDirectory()));
+                }
+                executorByProfile.put(((Class<Profile>) profiles.get(i)).newInstance(), executor);
             } catch (Exception e) {
                 throw new RuntimeException("Failed to instanciate configuration profile.", e);
             }
@@ -95,48 +145,284 @@ public void run(RunNotifier notifier)
             throw new RuntimeException("Failed to initialize XWiki Executors", e);
         }
 
-        for (final Profile profile : executorByProfile.keySet()) {
-            final XWikiExecutor executor = executorByProfile.get(profile);
+        // The benchmarks would measure each other, and the instances of a database server all use the same database.
+        boolean sequential = "false".equals(System.getProperty("storageParallelProfiles"))
+            || Boolean.getBoolean("storageBenchmark") || System.getProperty("storageDatabase") != null;
+        int threads = sequential ? 1 : executorByProfile.size();
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        List<Future< ? >> runs = new ArrayList<Future< ? >>();
+        for (final Map.Entry<Profile, XWikiExecutor> entry : executorByProfile.entrySet()) {
+            runs.add(threadPool.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runProfile(entry.getKey(), entry.getValue(), notifier);
+                }
+            }));
+        }
+        threadPool.shutdown();
+
+        RuntimeException error = null;
+        for (Future< ? > run : runs) {
             try {
+                run.get();
+            } catch (Exception e) {
+                if (error == null) {
+                    error = new RuntimeException("Failed to run the tests in a configuration profile.", e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * @param profile the profile class
+     * @return the name of the profile, used to select it and to report its results
+     * @since 9.5RC1
+     */
+    public static String getProfileName(Class< ? > profile)
+    {
+        return StringUtils.removeEnd(profile.getSimpleName(), "Profile");
+    }
 
-                try {
-                    executor.start();
-                } catch (Exception e) {
-                    throw new RuntimeException("Failed to start XWiki", e);
+    /**
+     * @return the selected profile classes, sorted by name so that each one always gets the same executor
+     */
+    private synchronized List<Class< ? >> getProfiles()
+    {
+        if (this.profiles == null) {
+            List<Class< ? >> selected = new ArrayList<Class< ? >>();
+            for (Class< ? > profile : new ClasspathClassesFinder(IsProfileTester.INSTANCE, "java.class.path").find()) {
+                if (isSelected(profile)) {
+                    selected.add(profile);
+                }
+            }
+            Collections.sort(selected, new Comparator<Class< ? >>()
+            {
+                @Override
+                public int compare(Class< ? > profile1, Class< ? > profile2)
+                {
+                    return profile1.getName().compareTo(profile2.getName());
                 }
+            });
+            this.profiles = selected;
+        }
+
+        return this.profiles;
+    }
+
+    /**
+     * @param tests the description of the tests, without profile
+     * @param profileName the name of the profile
+     * @return a suite named after the profile, with the tests of the profile
+     */
+    private static Description getProfileDescription(Description tests, String profileName)
+    {
+        Description description = Description.createSuiteDescription(profileName);
+        for (Description child : tests.getChildren()) {
+            description.addChild(forProfile(child, profileName));
+        }
+
+        return description;
+    }
+
+    /**
+     * @param description the description of a test or of a test class
+     * @param profileName the name of the profile the test is run in
+     * @return the same description, with the name of the profile in brackets, so that the runs of the same test in
+     *         the different profiles are distinct
+     */
+    private static Description forProfile(Description description, String profileName)
+    {
+        Annotation[] annotations = description.getAnnotations().toArray(new Annotation[0]);
+        String suffix = " [" + profileName + ']';
+        if (description.isTest()) {
+            String name = description.getMethodName() != null ? description.getMethodName()
+                : description.getDisplayName();
+            return Description.createTestDescription(description.getClassName(), name + suffix, annotations);
+        }
+
+        Description suite = Description.createSuiteDescription(description.getDisplayName() + suffix, annotations);
+        for (Description child : description.getChildren()) {
+            suite.addChild(forProfile(child, profileName));
+        }
+
+        return suite;
+    }
+
+    /**
+     * Copy the execution directory prepared by maven for a profile, unless it was already copied with the same webapp.
+     * Each profile keeps its copy from one run to the next, as the first profile keeps the directory prepared by
+     * maven.
+     *
+     * @param source the execution directory prepared by maven
+     * @param copy the execution directory of the profile
+     */
+    private static void copyExecutionDirectory(File source, File copy) throws IOException
+    {
+        String webapp = getWebappFingerprint(source);
+        File marker = new File(copy, COPY_MARKER);
+        if (webapp != null && marker.isFile() && webapp.equals(FileUtils.readFileToString(marker, "UTF-8"))) {
+            return;
+        }
+
+        FileUtils.deleteDirectory(copy);
+        FileUtils.copyDirectory(source, copy);
+        if (webapp != null) {
+            FileUtils.writeStringToFile(marker, webapp, "UTF-8");
+        }
+    }
+
+    /**
+     * @param executionDirectory an execution directory
+     * @return the names, sizes and dates of the libraries of the webapp, which change when maven unpacks another
+     *         build, or null if the webapp is not where expected
+     */
+    private static String getWebappFingerprint(File executionDirectory)
+    {
+        File[] libraries = new File(executionDirectory, "webapps/xwiki/WEB-INF/lib").listFiles();
+        if (libraries == null) {
+            return null;
+        }
+
+        Arrays.sort(libraries);
+        StringBuilder fingerprint = new StringBuilder();
+        for (File library : libraries) {
+            fingerprint.append(library.getName()).append(' ').append(library.length()).append(' ')
+                .append(library.lastModified()).append('\n');
+        }
 
-                try {
-                    Object instance = this.getTestClass().getJavaClass().newInstance();
+        return fingerprint.toString();
+    }
 
-                    // If there is a field which is an XWikiExecutor type
-                    // and has an @Inject annotation, inject the current executor.
-                    for (Field field : this.getTestClass().getJavaClass().getDeclaredFields()) {
-                        if (field.getType() == XWikiExecutor.class && field.getAnnotation(Inject.class) != null) {
+    /**
+     * The profiles listed in the "storageProfiles" System Property are run, or all the profiles which are not
+     * {@link OptInProfile}s if it is not set.
+     */
+    private static boolean isSelected(Class< ? > profile)
+    {
+        String selection = System.getProperty("storageProfiles", "");
+        if (StringUtils.isBlank(selection)) {
+            return !OptInProfile.class.isAssignableFrom(profile);
+        }
+
+        return Arrays.asList(selection.trim().split("\\s*,\\s*")).contains(getProfileName(profile));
+    }
+
+    private void runProfile(Profile profile, XWikiExecutor executor, RunNotifier notifier)
+    {
+        try {
+
+            try {
+                executor.start();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to start XWiki", e);
+            }
+
+            try {
+                Object instance = this.getTestClass().getJavaClass().newInstance();
+
+                // If there is a field which is an XWikiExecutor or a Profile type
+                // and has an @Inject annotation, inject the current executor or profile.
+                for (Field field : this.getTestClass().getJavaClass().getDeclaredFields()) {
+                    if (field.getAnnotation(Inject.class) != null) {
+                        if (field.getType() == XWikiExecutor.class) {
                             field.setAccessible(true);
                             field.set(instance, executor);
+                        } else if (field.getType() == Profile.class) {
+                            field.setAccessible(true);
+                            field.set(instance, profile);
                         }
                     }
+                }
 
-                    // If the class is initializable then call initialize.
-                    final Class< ? >[] interfaces = this.getTestClass().getJavaClass().getInterfaces();
-                    for (int i = 0; i < interfaces.length; i++) {
-                        if (interfaces[i] == Initializable.class) {
-                            this.getTestClass().getJavaClass().getMethod("initialize").invoke(instance);
-                        }
+                // If the class is initializable then call initialize.
+                final Class< ? >[] interfaces = this.getTestClass().getJavaClass().getInterfaces();
+                for (int i = 0; i < interfaces.length; i++) {
+                    if (interfaces[i] == Initializable.class) {
+                        this.getTestClass().getJavaClass().getMethod("initialize").invoke(instance);
+                    }
+                }
+
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to prepare tests to run in config profile.", e);
+            }
+
+            super.run(new ProfileRunNotifier(notifier, getProfileName(profile.getClass())));
+        } finally {
+            try {
+                executor.stop();
+            } catch (Exception e) {
+                // Squash this and let the original exception be thrown.
+            }
+        }
+    }
+
+    /**
+     * Forwards the notifications of a profile to the notifier of the suite, with the descriptions of the profile (see
+     * {@link ForEachProfileSuite#forProfile(Description, String)}). The notifications are forwarded one at a time since
+     * the listeners of the suite (e.g. the surefire reporter) don't expect concurrent notifications.
+     */
+    private class ProfileRunNotifier extends RunNotifier
+    {
+        ProfileRunNotifier(final RunNotifier notifier, final String profileName)
+        {
+            addListener(new RunListener()
+            {
+                @Override
+                public void testStarted(Description description)
+                {
+                    synchronized (notifier) {
+                        notifier.fireTestStarted(map(description));
                     }
+                }
 
-                } catch (Exception e) {
-                    throw new RuntimeException("Failed to prepare tests to run in config profile.", e);
+                @Override
+                public void testFailure(Failure failure)
+                {
+                    synchronized (notifier) {
+                        notifier.fireTestFailure(new Failure(map(failure.getDescription()), failure.getException()));
+                    }
                 }
 
-                super.run(notifier);
-            } finally {
-                try {
-                    executor.stop();
-                } catch (Exception e) {
-                    // Squash this and let the original exception be thrown.
+                @Override
+                public void testAssumptionFailure(Failure failure)
+                {
+                    synchronized (notifier) {
+                        notifier.fireTestAssumptionFailed(
+                            new Failure(map(failure.getDescription()), failure.getException()));
+                    }
                 }
-            }
+
+                @Override
+                public void testIgnored(Description description)
+                {
+                    synchronized (notifier) {
+                        notifier.fireTestIgnored(map(description));
+                    }
+                }
+
+                @Override
+                public void testFinished(Description description)
+                {
+                    synchronized (notifier) {
+                        notifier.fireTestFinished(map(description));
+                    }
+                }
+
+                private Description map(Description description)
+                {
+                    // The failures of the suite itself are reported with the whole description.
+                    if (description.getDisplayName().equals(getTestClass().getName())) {
+                        return Description.createSuiteDescription(profileName);
+                    }
+
+                    return forProfile(description, profileName);
+                }
+            });
         }
     }
 
@@ -152,13 +438,7 @@ private static class IsProfileTester implements ClassTester
         @Override
         public boolean acceptClass(Class< ? > klass)
         {
-            final Class< ? >[] interfaces = klass.getInterfaces();
-            for (int i = 0; i < interfaces.length; i++) {
-                if (interfaces[i] == Profile.class) {
-                    return true;
-                }
-            }
-            return false;
+            return Profile.class.isAssignableFrom(klass) && !klass.isInterface();
         }
 
         @Override
@@ -0,0 +1,57 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage.profiles;
+
+import java.util.Properties;
+
+import org.xwiki.test.integration.XWikiExecutor;
+
+/**
+ * Test profile for running tests with the filesystem attachment storage flushing its files to the disk in groups: the
+ * writers which finish within the same short window share a single fsync instead of paying one each, and their saves
+ * return once the group is on the disk.
+ * <p>
+ * The store must be installed in the tested XWiki for its hint to resolve, so this profile is opt-in:
+ * {@code -DstorageProfiles=FilesystemAttachmentStorage,GroupCommitAttachmentStorage}.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class GroupCommitAttachmentStorageProfile implements OptInProfile
+{
+    /** The hint of the filesystem attachment store committing its files in groups. */
+    public static final String HINT = "file/groupcommit";
+
+    /** How long, in milliseconds, the writers wait for others to join their flush. */
+    public static final String WINDOW = System.getProperty("storageGroupCommitWindow", "5");
+
+    @Override
+    public void apply(final XWikiExecutor executor) throws Exception
+    {
+        final Properties conf = executor.loadXWikiCfg();
+
+        conf.setProperty("xwiki.store.attachment.hint", HINT);
+        conf.setProperty("xwiki.store.attachment.versioning.hint", "file");
+        conf.setProperty("xwiki.store.attachment.recyclebin.hint", "file");
+        conf.setProperty("xwiki.store.attachment.groupcommit.window", WINDOW);
+
+        executor.saveXWikiCfg(conf);
+    }
+}
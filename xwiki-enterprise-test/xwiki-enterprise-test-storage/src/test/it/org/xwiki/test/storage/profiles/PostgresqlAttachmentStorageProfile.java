@@ -0,0 +1,55 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.test.storage.profiles;
+
+import java.util.Properties;
+
+import org.xwiki.test.integration.XWikiExecutor;
+
+/**
+ * Test profile for running tests with the attachment contents, versions and deleted attachments stored in a
+ * PostgreSQL database, as binary values of the attachment tables, to compare with the filesystem attachment storage
+ * as the attachments grow.
+ * <p>
+ * It needs the jetty-pgsql distribution and a PostgreSQL server, which the "pgsql" maven profile of this module
+ * provides, so this profile is opt-in:
+ * {@code -Ppgsql -Dxwiki.db=pgsql -DstorageProfiles=PostgresqlAttachmentStorage,FilesystemAttachmentStorage}.
+ *
+ * @version $Id$
+ * @since 9.5RC1
+ */
+public class PostgresqlAttachmentStorageProfile implements OptInProfile
+{
+    @Override
+    public void apply(final XWikiExecutor executor) throws Exception
+    {
+        if (!"pgsql".equals(System.getProperty("storageDatabase"))) {
+            throw new IllegalStateException("The PostgresqlAttachmentStorage profile needs the pgsql maven profile");
+        }
+
+        final Properties conf = executor.loadXWikiCfg();
+
+        conf.setProperty("xwiki.store.attachment.hint", "hibernate");
+        conf.setProperty("xwiki.store.attachment.versioning.hint", "hibernate");
+        conf.setProperty("xwiki.store.attachment.recyclebin.hint", "hibernate");
+
+        executor.saveXWikiCfg(conf);
+    }
+}